@@ -0,0 +1,92 @@
+package bench;
+
+import server.Journal;
+import server.ServerOptions;
+import server.Whiteboard;
+import server.WhiteboardManager;
+import shared.LineSegment;
+
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measures DRAW throughput with persistence on and off. Several threads draw short strokes on their own whiteboards
+ * as fast as they can, submitting them to the boards' writers as clients do; each draw counts as acknowledged when the
+ * server would send its ACK, which is once it is queued, or with persistence once the journal has made it durable.
+ * Usage: java bench.DrawThroughputBench [threads] [draws per thread] [journal directory, or omit for none]
+ */
+public class DrawThroughputBench {
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        final int draws = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        final Journal journal = args.length > 2 ? new Journal(new File(args[2]), new ServerOptions().getSegmentSize()) : null;
+        WhiteboardManager manager = journal == null ? new WhiteboardManager() : new WhiteboardManager(new ServerOptions(), journal);
+
+        final Whiteboard[] boards = new Whiteboard[threads];
+        for(int i = 0; i < threads; i++) {
+            boards[i] = manager.createWhiteboard("bench-" + System.nanoTime() + "-" + i);
+        }
+        final CountDownLatch acknowledged = new CountDownLatch(threads * draws);
+        final AtomicLongArray latencies = new AtomicLongArray(threads * draws);
+        Thread[] drawers = new Thread[threads];
+        long start = System.nanoTime();
+        for(int i = 0; i < threads; i++) {
+            final int index = i;
+            drawers[i] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(index);
+                    for(int j = 0; j < draws; j++) {
+                        int x = random.nextInt(780);
+                        int y = random.nextInt(580);
+                        final int slot = index * draws + j;
+                        final long drawn = System.nanoTime();
+                        List<LineSegment> segments = Arrays.asList(new LineSegment(x, y, x + 15, y + 12));
+                        Runnable ack = new Runnable() {
+                            @Override
+                            public void run() {
+                                latencies.set(slot, System.nanoTime() - drawn);
+                                acknowledged.countDown();
+                            }
+                        };
+                        if(journal == null) {
+                            boards[index].submit(Color.BLACK, 2, segments, null);
+                            ack.run();
+                        } else {
+                            boards[index].submit(Color.BLACK, 2, segments, ack);
+                        }
+                    }
+                }
+            };
+            drawers[i].start();
+        }
+        for(Thread drawer : drawers) {
+            drawer.join();
+        }
+        for(Whiteboard board : boards) {
+            board.flush();
+        }
+        long applied = System.nanoTime() - start;
+        acknowledged.await();
+        long total = System.nanoTime() - start;
+        if(journal != null) {
+            journal.close();
+        }
+
+        long[] sorted = new long[latencies.length()];
+        for(int i = 0; i < sorted.length; i++) {
+            sorted[i] = latencies.get(i);
+        }
+        Arrays.sort(sorted);
+        System.out.printf("%s, %d threads: %.0f draws/s applied, %.0f draws/s acknowledged;"
+                + " draw-to-ACK p50 %.3f ms, p99 %.3f ms%n",
+                journal == null ? "persistence off" : "persistence on", threads, sorted.length / (applied / 1e9),
+                sorted.length / (total / 1e9), sorted[sorted.length / 2] / 1e6, sorted[sorted.length * 99 / 100] / 1e6);
+    }
+}
@@ -0,0 +1,69 @@
+package bench;
+
+import server.Whiteboard;
+import shared.LineSegment;
+import shared.SnapshotEncoding;
+
+import java.awt.*;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how long draws take on a whiteboard while many users are joining it. Each joiner repeatedly asks for a
+ * serialized snapshot, as the server does for JOIN; one drawer issues strokes at a steady rate and records how long
+ * each draw() call takes.
+ * Usage: java bench.JoinStormBench [joiners] [seconds] [raw|deflate]
+ */
+public class JoinStormBench {
+    public static void main(String[] args) throws InterruptedException {
+        int joiners = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        final SnapshotEncoding encoding = args.length > 2 ? SnapshotEncoding.valueOf(args[2].toUpperCase())
+                : SnapshotEncoding.RAW;
+
+        final Whiteboard board = new Whiteboard("bench");
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong snapshots = new AtomicLong();
+        Thread[] threads = new Thread[joiners];
+        for(int i = 0; i < joiners; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    while(running.get()) {
+                        board.getSerializedImage(encoding);
+                        snapshots.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        Random random = new Random(1);
+        long[] latencies = new long[seconds * 1000];
+        int draws = 0;
+        long end = System.nanoTime() + seconds * 1000000000L;
+        while(System.nanoTime() < end && draws < latencies.length) {
+            LineSegment line = new LineSegment(random.nextInt(800), random.nextInt(600), random.nextInt(800),
+                    random.nextInt(600));
+            long start = System.nanoTime();
+            board.draw(Color.BLACK, 3, Arrays.asList(line));
+            latencies[draws++] = System.nanoTime() - start;
+            Thread.sleep(1);
+        }
+        running.set(false);
+        for(Thread thread : threads) {
+            thread.join();
+        }
+
+        Arrays.sort(latencies, 0, draws);
+        System.out.printf("%d joiners, %s: %d draws, %d snapshots; draw latency p50 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+                joiners, encoding, draws, snapshots.get(), percentile(latencies, draws, 0.50),
+                percentile(latencies, draws, 0.99), latencies[draws - 1] / 1e6);
+    }
+
+    private static double percentile(long[] sorted, int count, double fraction) {
+        return sorted[Math.min(count - 1, (int)(count * fraction))] / 1e6;
+    }
+}
@@ -0,0 +1,71 @@
+package bench;
+
+import server.Whiteboard;
+import shared.LineSegment;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares rasterising draws one call at a time, as draw() does, with draining them in batches, as the whiteboard's
+ * writer does for submit(). Every round draws the same freehand strokes, a few segments each in a handful of colours
+ * and widths, onto a fresh whiteboard; the first rounds are discarded as warm-up.
+ * Usage: java bench.RasterBench [strokes per round] [rounds]
+ */
+public class RasterBench {
+    private static final int WARMUP_ROUNDS = 3;
+
+    public static void main(String[] args) throws InterruptedException {
+        int strokes = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        Random random = new Random(1);
+        Color[] colours = new Color[strokes];
+        float[] widths = new float[strokes];
+        List<List<LineSegment>> segments = new ArrayList<>(strokes);
+        for(int i = 0; i < strokes; i++) {
+            // A user tends to draw several strokes in a row with the same pen.
+            colours[i] = i % 20 < 10 ? Color.BLACK : Color.BLUE;
+            widths[i] = i % 40 < 20 ? 2 : 6;
+            List<LineSegment> stroke = new ArrayList<>();
+            int x = random.nextInt(Whiteboard.WIDTH);
+            int y = random.nextInt(Whiteboard.HEIGHT);
+            for(int j = 0; j < 4; j++) {
+                int nextX = x + random.nextInt(21) - 10;
+                int nextY = y + random.nextInt(21) - 10;
+                stroke.add(new LineSegment(x, y, nextX, nextY));
+                x = nextX;
+                y = nextY;
+            }
+            segments.add(stroke);
+        }
+
+        long perCall = 0;
+        long batched = 0;
+        for(int round = 0; round < WARMUP_ROUNDS + rounds; round++) {
+            Whiteboard board = new Whiteboard("per-call");
+            long start = System.nanoTime();
+            for(int i = 0; i < strokes; i++) {
+                board.draw(colours[i], widths[i], segments.get(i));
+            }
+            long calls = System.nanoTime() - start;
+
+            board = new Whiteboard("batched");
+            start = System.nanoTime();
+            for(int i = 0; i < strokes; i++) {
+                board.submit(colours[i], widths[i], segments.get(i), null);
+            }
+            board.flush();
+            long batches = System.nanoTime() - start;
+
+            if(round >= WARMUP_ROUNDS) {
+                perCall += calls;
+                batched += batches;
+            }
+        }
+        System.out.printf("%d strokes x %d rounds: per call %.0f strokes/s, batched %.0f strokes/s%n", strokes, rounds,
+                strokes * (long)rounds / (perCall / 1e9), strokes * (long)rounds / (batched / 1e9));
+    }
+}
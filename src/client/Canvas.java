@@ -6,16 +6,25 @@ import java.awt.*;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
-import java.awt.image.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
 
 import javax.swing.JPanel;
+import javax.swing.Timer;
 
 /**
  * Canvas represents a drawing surface that allows the user to draw
  * on it freehand, with the mouse.
- * Thread safety: everything touching state that could be inconsistent (drawingBuffer or
- *                drawingGraphics) uses mutexes.
+ * Lines the user draws are kept until discardLinesThrough() says the server has drawn them, so that
+ * they can be removed one stroke at a time rather than by clearing the whole canvas.
+ * Only what changes is repainted: every change marks the rectangle it touched, allowing for the stroke
+ * width, and the rectangles marked within a frame are merged into one repaint.
+ * Thread safety: everything touching state that could be inconsistent (drawingBuffer,
+ *                drawingGraphics or the local lines) uses mutexes.
  */
 public class Canvas extends JPanel {
     // image where the user's drawing is stored
@@ -26,6 +35,32 @@ public class Canvas extends JPanel {
     private boolean opaque = false;
     private CanvasDelegate delegate = null;
     BasicStroke brushStroke = new BasicStroke(1);
+    private long linesDrawn = 0; // How many lines have been passed to the delegate, numbering them from 1.
+    private final Deque<LocalLine> localLines = new ArrayDeque<>(); // Drawn here but not yet by the server, oldest first.
+    private static final int FRAME_MILLIS = 16;
+    private Rectangle dirty = null; // Changed since the last repaint, or null if nothing has.
+    private Runnable firstPaint = null; // Run once the image given to setImage() has been painted.
+    private final Timer repaintTimer;
+
+    /*
+     * A line the user drew, as drawn on this canvas.
+     */
+    private static class LocalLine {
+        final long number;
+        final Color colour;
+        final BasicStroke stroke;
+        final int x1, y1, x2, y2;
+
+        LocalLine(long number, Color colour, BasicStroke stroke, int x1, int y1, int x2, int y2) {
+            this.number = number;
+            this.colour = colour;
+            this.stroke = stroke;
+            this.x1 = x1;
+            this.y1 = y1;
+            this.x2 = x2;
+            this.y2 = y2;
+        }
+    }
 
     /**
      * Make a canvas.
@@ -42,6 +77,13 @@ public class Canvas extends JPanel {
         setOpaque(opaque);
         addDrawingController();
         setBackground(new Color(255, 0, 0, 0));
+        repaintTimer = new Timer(FRAME_MILLIS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                repaintDirty();
+            }
+        });
+        repaintTimer.setRepeats(false);
         
         //This changes the cursor to a crosshair cursor--do we want to?
         //this.setCursor(new Cursor(Cursor.CROSSHAIR_CURSOR));
@@ -60,10 +102,17 @@ public class Canvas extends JPanel {
      */
     @Override
     public void paintComponent(Graphics g) {
-        // If this is the first time paintComponent() is being called,
-        // make our drawing buffer.
-        if (drawingBuffer == null) {
-            makeDrawingBuffer();
+        BufferedImage buffer;
+        Runnable painted;
+        synchronized(this) {
+            // If this is the first time paintComponent() is being called,
+            // make our drawing buffer.
+            if (drawingBuffer == null) {
+                makeDrawingBuffer();
+            }
+            buffer = drawingBuffer;
+            painted = firstPaint;
+            firstPaint = null;
         }
         Graphics2D graphics = (Graphics2D)g.create();
         graphics.setComposite(AlphaComposite.Src);
@@ -72,10 +121,18 @@ public class Canvas extends JPanel {
         super.paintComponent(g);
         if(opaque) { // get rid of this if to enable local echo. Flickers.
 //            graphics.fillRect(0, 0, getWidth(), getHeight());
-            graphics.drawImage(drawingBuffer, 0, 0, new Color(0, 255, 0, 0), null);
-        // Copy the drawing buffer to the screen.
+            // Copy the part of the drawing buffer being repainted to the screen.
+            Rectangle clip = g.getClipBounds();
+            if(clip == null) {
+                clip = new Rectangle(0, 0, getWidth(), getHeight());
+            }
+            graphics.drawImage(buffer, clip.x, clip.y, clip.x + clip.width, clip.y + clip.height,
+                    clip.x, clip.y, clip.x + clip.width, clip.y + clip.height, new Color(0, 255, 0, 0), null);
+        }
+        graphics.dispose();
+        if(painted != null) {
+            painted.run();
         }
-
     }
     
     /*
@@ -97,7 +154,7 @@ public class Canvas extends JPanel {
         
         // IMPORTANT!  every time we draw on the internal drawing buffer, we
         // have to notify Swing to repaint this component on the screen.
-        this.repaint();
+        markDirty(new Rectangle(0, 0, getWidth(), getHeight()));
     }
     
     /*
@@ -105,30 +162,96 @@ public class Canvas extends JPanel {
      * pixels relative to the upper-left corner of the drawing buffer.
      */
     private synchronized void drawLineSegment(int x1, int y1, int x2, int y2) {
-        drawingGraphics.setBackground(new Color(0, 255, 0, 0));
-        drawingGraphics.setStroke(brushStroke);
-        drawingGraphics.setComposite(AlphaComposite.SrcOver);
         Color ourColour = new Color(colour.getRed(), colour.getGreen(), colour.getBlue(), 255);
-        
-        if (!isErasing) {
-            drawingGraphics.setColor(ourColour);
-        } else {
-            drawingGraphics.setColor(Color.WHITE);
+        LocalLine line = new LocalLine(linesDrawn + 1, isErasing ? Color.WHITE : ourColour, brushStroke, x1, y1, x2, y2);
+        if(delegate != null) {
+            // Numbered like the lines passed on to the delegate, so the two counts agree.
+            linesDrawn++;
+            localLines.add(line);
         }
-        drawingGraphics.drawLine(x1, y1, x2, y2);
+        paintLine(line);
         
         // IMPORTANT!  every time we draw on the internal drawing buffer, we
         // have to notify Swing to repaint this component on the screen.
-        this.repaint();
+        markDirty(bounds(x1, y1, x2, y2, brushStroke.getLineWidth()));
+    }
+
+    private void paintLine(LocalLine line) {
+        drawingGraphics.setBackground(new Color(0, 255, 0, 0));
+        drawingGraphics.setStroke(line.stroke);
+        drawingGraphics.setComposite(AlphaComposite.SrcOver);
+        drawingGraphics.setColor(line.colour);
+        drawingGraphics.drawLine(line.x1, line.y1, line.x2, line.y2);
+    }
+
+    /**
+     * Removes the user's lines up to the given one, once the server has drawn them, leaving later ones in place.
+     * @param line The number of the last line to remove; the first line drawn is 1.
+     */
+    public synchronized void discardLinesThrough(long line) {
+        if(localLines.isEmpty() || localLines.peekFirst().number > line) {
+            return;
+        }
+        Rectangle changed = null;
+        while(!localLines.isEmpty() && localLines.peekFirst().number <= line) {
+            LocalLine discarded = localLines.removeFirst();
+            Rectangle area = bounds(discarded.x1, discarded.y1, discarded.x2, discarded.y2,
+                    discarded.stroke.getLineWidth());
+            changed = changed == null ? area : changed.union(area);
+        }
+        erase();
+        for(LocalLine remaining : localLines) {
+            paintLine(remaining);
+        }
+        markDirty(changed);
     }
 
     public synchronized void drawLines(Color colour, float strokeWidth, List<LineSegment> segments) {
         drawingGraphics.setStroke(new BasicStroke(strokeWidth));
         drawingGraphics.setColor(colour);
+        Rectangle changed = null;
         for(LineSegment segment : segments) {
             drawingGraphics.drawLine(segment.x1, segment.y1, segment.x2, segment.y2);
+            Rectangle area = bounds(segment.x1, segment.y1, segment.x2, segment.y2, strokeWidth);
+            changed = changed == null ? area : changed.union(area);
+        }
+        if(changed != null) {
+            markDirty(changed);
+        }
+    }
+
+    /**
+     * @return The area a line can paint, allowing for its width and square ends.
+     */
+    private static Rectangle bounds(int x1, int y1, int x2, int y2, float strokeWidth) {
+        int pad = (int)Math.ceil(strokeWidth * 0.75) + 1; // Half the width, times root two for the corners of the ends.
+        return new Rectangle(Math.min(x1, x2) - pad, Math.min(y1, y2) - pad,
+                Math.abs(x2 - x1) + 2 * pad + 1, Math.abs(y2 - y1) + 2 * pad + 1);
+    }
+
+    /**
+     * Adds to the area to repaint at the end of the frame.
+     * @param area The area changed.
+     */
+    private synchronized void markDirty(Rectangle area) {
+        dirty = dirty == null ? area : dirty.union(area);
+        if(!repaintTimer.isRunning()) {
+            repaintTimer.start();
+        }
+    }
+
+    /*
+     * Repaints everything changed during the frame. Runs on the Swing thread.
+     */
+    private void repaintDirty() {
+        Rectangle area;
+        synchronized(this) {
+            area = dirty;
+            dirty = null;
+        }
+        if(area != null) {
+            repaint(area);
         }
-        this.repaint();
     }
     
     /*
@@ -166,31 +289,35 @@ public class Canvas extends JPanel {
     }
 
     /**
-     * Replaces the current content of the canvas with the given bitmap.
-     * @param bitmap An unpadded sequence of bytes describing an image of the same dimensions of this canvas in
-     *               which each set of four bytes represents one ARGB pixel.
+     * Replaces the current content of the canvas with the given image, which the canvas then keeps and draws on.
+     * Nothing is copied, so this is cheap enough to call from any thread.
+     * @param image A TYPE_INT_ARGB image of the same dimensions as this canvas.
+     * @param painted Run on the Swing thread once the image is first on screen, or null.
      */
-    public synchronized void setBitmap(byte[] bitmap) {
-        // Because this can get called very early.
-        if (drawingBuffer == null) {
-            makeDrawingBuffer();
+    public synchronized void setImage(BufferedImage image, Runnable painted) {
+        if(drawingGraphics != null) {
+            drawingGraphics.dispose();
         }
-        DataBufferByte buffer = new DataBufferByte(bitmap, bitmap.length);
-        SampleModel model = new PixelInterleavedSampleModel(buffer.getDataType(), getWidth(), getHeight(), 4, 4 * getWidth(), new int[]{3,2,1,0});
-        Raster raster = Raster.createRaster(model, buffer, new Point(0, 0));
-        drawingBuffer.setData(raster);
-        repaint();
+        drawingBuffer = image;
+        drawingGraphics = image.createGraphics();
+        firstPaint = painted;
+        markDirty(new Rectangle(0, 0, getWidth(), getHeight()));
     }
 
     /**
      * Clears the canvas.
      */
     public synchronized void clear() {
+        localLines.clear();
         if(drawingBuffer == null) return;
+        erase();
+        markDirty(new Rectangle(0, 0, getWidth(), getHeight()));
+    }
+
+    private void erase() {
         drawingGraphics.setComposite(AlphaComposite.Src);
         drawingGraphics.setColor(new Color(0,0,0,0));
         drawingGraphics.fillRect(0, 0, getWidth(), getHeight());
-        repaint();
     }
     
     /*
@@ -236,7 +363,11 @@ public class Canvas extends JPanel {
             lastX = x;
             lastY = y;
         }
-        public void mouseReleased(MouseEvent e) { }
+        public void mouseReleased(MouseEvent e) {
+            if(delegate != null) {
+                delegate.finishedStroke();
+            }
+        }
         public void mouseEntered(MouseEvent e) { }
         public void mouseExited(MouseEvent e) { }
     }
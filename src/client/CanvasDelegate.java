@@ -17,6 +17,17 @@ public interface CanvasDelegate {
      */
     public void drewLine(Color colour, float strokeWidth, int x1, int y1, int x2, int y2);
 
+    /**
+     * Called when the user finishes a stroke by releasing the mouse button.
+     */
+    public void finishedStroke();
+
+    /**
+     * Called when the user changes how much strokes are simplified before they are sent.
+     * @param pixels How far a simplified stroke may stray from the one drawn, in pixels. 0 sends strokes as drawn.
+     */
+    public void changedSimplifyTolerance(int pixels);
+
     /**
      * Called when the user requests a change to a different whiteboard
      * @param newWhiteboard The name of the requested whiteboard
@@ -5,6 +5,7 @@ import shared.LineSegment;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Container;
+import java.awt.image.BufferedImage;
 import java.util.List;
 
 import javax.swing.*;
@@ -65,11 +66,30 @@ public class ClientGUI extends JFrame
     }
     
     /**
-     * Sets the canvas bitmap with the input bitmap
-     * @param bitmap
+     * Shows the input image on the canvas
+     * @param image
+     * @param painted Run once the image is first on screen, or null
      */
-    public void setCanvasBitmap(byte[] bitmap) {
-        canvas.setBitmap(bitmap);
+    public void setCanvasImage(BufferedImage image, Runnable painted) {
+        canvas.setImage(image, painted);
+    }
+    
+    /**
+     * Passes the user's choice of stroke simplification on to the canvas delegate
+     * @param pixels
+     */
+    public void setSimplifyTolerance(int pixels) {
+        if(delegate != null) {
+            delegate.changedSimplifyTolerance(pixels);
+        }
+    }
+    
+    /**
+     * Shows the stroke simplification in use in the toolbar
+     * @param pixels
+     */
+    public void showSimplifyTolerance(int pixels) {
+        toolbar.setSimplifyTolerance(pixels);
     }
     
     /**
@@ -109,6 +129,15 @@ public class ClientGUI extends JFrame
     {
         canvas.clearDrawingCanvas();
     }
+
+    /**
+     * Removes the local copies of lines the server has drawn
+     * @param line The last line to remove, counting from the first drawn
+     */
+    public void discardLocalLines(long line)
+    {
+        canvas.discardLocalLines(line);
+    }
     
     /**
      * Sets the list of current users in the topbar
@@ -0,0 +1,246 @@
+package client;
+
+import shared.LineSegment;
+import shared.SnapshotEncoding;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Passes WhiteboardClient's events on to its delegate from a thread of its own, one at a time and in the order they
+ * happened, so that the network thread can get on with reading. Whiteboard snapshots are decoded on that thread too,
+ * straight into an image in the canvas's pixel format, so that all the canvas has to do is start using it; one sent in
+ * CHUNKs is decoded a piece at a time as they arrive, and any previews sent ahead of it are scaled up and passed on
+ * as soon as each is complete. Because the snapshot and the draws after it go through the same queue, the draws
+ * always land on the new image.
+ * Thread safety: may be called from any thread; the delegate is only ever called from the delegate thread.
+ */
+class SerialDelegate implements WhiteboardClientDelegate {
+    private final WhiteboardClientDelegate delegate;
+    private final ExecutorService thread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Whiteboard-delegate");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final AtomicLong decoded = new AtomicLong();
+    private final AtomicLong decodeNanos = new AtomicLong();
+
+    // The snapshot being decoded, and what to pass on with it. Only used on the delegate thread.
+    private SnapshotReader snapshot = null;
+    private String snapshotBoard;
+    private String[] snapshotUsers;
+    private int snapshotScale;
+    private long snapshotNanos;
+
+    /**
+     * @param delegate The delegate to pass events on to.
+     */
+    SerialDelegate(WhiteboardClientDelegate delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Decodes a whiteboard snapshot, then passes on joinedWhiteboard().
+     * @param whiteboard The name of the whiteboard joined
+     * @param encoded Its bitmap, as it appeared in the WHITEBOARD message (see SnapshotEncoding).
+     * @param usernames An array of usernames on the board.
+     */
+    void joinedWhiteboard(String whiteboard, String encoded, String[] usernames) {
+        beginSnapshot(whiteboard, usernames);
+        snapshotChunk(encoded, true);
+    }
+
+    /**
+     * Starts decoding a whiteboard snapshot that arrives in pieces, replacing any that was not finished.
+     * @param whiteboard The name of the whiteboard joined
+     * @param usernames An array of usernames on the board.
+     */
+    void beginSnapshot(final String whiteboard, final String[] usernames) {
+        thread.execute(new Runnable() {
+            @Override
+            public void run() {
+                snapshot = new SnapshotReader();
+                snapshotBoard = whiteboard;
+                snapshotUsers = usernames;
+                snapshotScale = 1;
+                snapshotNanos = 0;
+            }
+        });
+    }
+
+    /**
+     * Starts decoding the next level of the snapshot begun by beginSnapshot(): a preview if the scale is more than 1,
+     * otherwise the snapshot itself.
+     * @param scale How many pixels each way every pixel of the level stands for.
+     */
+    void beginLevel(final int scale) {
+        thread.execute(new Runnable() {
+            @Override
+            public void run() {
+                snapshot = new SnapshotReader(scale);
+                snapshotScale = scale;
+            }
+        });
+    }
+
+    /**
+     * Decodes the next piece of the snapshot begun by beginSnapshot(), and passes on joinedWhiteboard() after the last,
+     * or previewedWhiteboard() after the last of a preview level.
+     * @param text The piece, as it appeared in the message.
+     * @param last Whether it is the last piece.
+     */
+    void snapshotChunk(final String text, final boolean last) {
+        thread.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(snapshot == null) {
+                    return; // Gave up on this snapshot already.
+                }
+                long start = System.nanoTime();
+                BufferedImage image = null;
+                try {
+                    snapshot.append(text);
+                    if(last) {
+                        image = snapshot.finish();
+                    }
+                } catch(IllegalArgumentException e) {
+                    snapshot = null;
+                    delegate.serverError("Could not read whiteboard " + snapshotBoard + ": " + e.getMessage());
+                    return;
+                }
+                snapshotNanos += System.nanoTime() - start;
+                if(last && snapshotScale > 1) {
+                    snapshot = null;
+                    delegate.previewedWhiteboard(snapshotBoard, enlarge(image, snapshotScale), snapshotUsers);
+                    return;
+                }
+                if(last) {
+                    snapshot = null;
+                    decoded.incrementAndGet();
+                    decodeNanos.addAndGet(snapshotNanos);
+                    delegate.joinedWhiteboard(snapshotBoard, image, snapshotUsers);
+                }
+            }
+        });
+    }
+
+    /**
+     * Scales a preview up to the size of the whiteboard, smoothing between its pixels.
+     * @param preview The preview.
+     * @param scale How many pixels each way every pixel of the preview stands for.
+     * @return A full size image of the type the canvas draws in.
+     */
+    private static BufferedImage enlarge(BufferedImage preview, int scale) {
+        BufferedImage image = new BufferedImage(SnapshotEncoding.WIDTH, SnapshotEncoding.HEIGHT,
+                BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        // Where the board does not divide evenly, the preview's last pixels overhang the edges.
+        g.drawImage(preview, 0, 0, preview.getWidth() * scale, preview.getHeight() * scale, null);
+        g.dispose();
+        return image;
+    }
+
+    /**
+     * @return How many snapshots have been decoded.
+     */
+    long getDecoded() {
+        return decoded.get();
+    }
+
+    /**
+     * @return The total time spent decoding snapshots, in nanoseconds.
+     */
+    long getDecodeNanos() {
+        return decodeNanos.get();
+    }
+
+    @Override
+    public void serverConnectionFailed(final IOException e) {
+        thread.execute(new Runnable() {
+            @Override
+            public void run() {
+                delegate.serverConnectionFailed(e);
+            }
+        });
+    }
+
+    @Override
+    public void whiteboardListUpdated(final String[] boards) {
+        thread.execute(new Runnable() {
+            @Override
+            public void run() {
+                delegate.whiteboardListUpdated(boards);
+            }
+        });
+    }
+
+    @Override
+    public void joinedWhiteboard(final String whiteboard, final BufferedImage image, final String[] usernames) {
+        thread.execute(new Runnable() {
+            @Override
+            public void run() {
+                delegate.joinedWhiteboard(whiteboard, image, usernames);
+            }
+        });
+    }
+
+    @Override
+    public void previewedWhiteboard(final String whiteboard, final BufferedImage image, final String[] usernames) {
+        thread.execute(new Runnable() {
+            @Override
+            public void run() {
+                delegate.previewedWhiteboard(whiteboard, image, usernames);
+            }
+        });
+    }
+
+    @Override
+    public void serverDrew(final Color colour, final float strokeWidth, final List<LineSegment> segments) {
+        thread.execute(new Runnable() {
+            @Override
+            public void run() {
+                delegate.serverDrew(colour, strokeWidth, segments);
+            }
+        });
+    }
+
+    @Override
+    public void serverError(final String message) {
+        thread.execute(new Runnable() {
+            @Override
+            public void run() {
+                delegate.serverError(message);
+            }
+        });
+    }
+
+    @Override
+    public void serverACK(final long line) {
+        thread.execute(new Runnable() {
+            @Override
+            public void run() {
+                delegate.serverACK(line);
+            }
+        });
+    }
+
+    @Override
+    public void userListChanged(final String[] list) {
+        thread.execute(new Runnable() {
+            @Override
+            public void run() {
+                delegate.userListChanged(list);
+            }
+        });
+    }
+}
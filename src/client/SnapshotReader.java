@@ -0,0 +1,167 @@
+package client;
+
+import shared.Base64;
+import shared.SnapshotEncoding;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes a whiteboard bitmap (see SnapshotEncoding) straight into an image of the type the canvas draws in, a piece
+ * at a time, so that a bitmap sent in CHUNKs is decoded as it arrives and never held whole, as text or as bytes.
+ * The pieces may be split anywhere; base64 left over from one piece is carried on to the next.
+ * Thread safety: not thread safe; used from one thread at a time.
+ */
+public class SnapshotReader {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int PREFIX_LENGTH = 2; // Of the longest prefix or marker.
+
+    private final BufferedImage image;
+    private final int[] pixels;
+    private int filled = 0; // Pixels decoded so far.
+    private final byte[] partial = new byte[4]; // The bytes of a pixel split between pieces.
+    private int partialLength = 0;
+    private String carried = ""; // Base64 left over from the last piece, less than one group.
+    private boolean started = false;
+    private Inflater inflater = null; // Only for compressed bitmaps.
+    private byte[] buffer = null;
+
+    /**
+     * Reads a full size bitmap.
+     */
+    public SnapshotReader() {
+        this(1);
+    }
+
+    /**
+     * @param scale How many pixels each way every pixel of the bitmap stands for (see Protocol): 1 for full size.
+     */
+    public SnapshotReader(int scale) {
+        image = new BufferedImage(SnapshotEncoding.scaledWidth(scale), SnapshotEncoding.scaledHeight(scale),
+                BufferedImage.TYPE_INT_ARGB);
+        pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Decodes the next piece of the bitmap.
+     * @param text The piece, as it appeared in the message.
+     * @throws IllegalArgumentException If the text is not a valid encoding, or holds more than a bitmap.
+     */
+    public void append(String text) {
+        text = carried + text;
+        if(!started) {
+            // The prefix could itself be split, so wait for enough to tell the encoding.
+            if(text.length() < PREFIX_LENGTH) {
+                carried = text;
+                return;
+            }
+            text = begin(text);
+        }
+        int whole = text.length() - text.length() % 4;
+        carried = text.substring(whole);
+        consume(Base64.decode(text.substring(0, whole)));
+    }
+
+    /**
+     * Decodes whatever is left and checks the bitmap is complete.
+     * @return The bitmap.
+     * @throws IllegalArgumentException If the bitmap is invalid or incomplete.
+     */
+    public BufferedImage finish() {
+        if(!started) {
+            carried = begin(carried);
+        }
+        if(!carried.isEmpty()) {
+            // Only the last group may be short: its padding was left off.
+            consume(Base64.decode(carried));
+            carried = "";
+        }
+        if(inflater != null) {
+            boolean finished = inflater.finished();
+            inflater.end();
+            if(!finished) {
+                throw new IllegalArgumentException("Truncated compressed bitmap.");
+            }
+        }
+        if(filled != pixels.length || partialLength != 0) {
+            throw new IllegalArgumentException("Bitmap is the wrong size.");
+        }
+        return image;
+    }
+
+    /**
+     * Works out the encoding from the start of the bitmap.
+     * @param text The start of the bitmap, at least as long as any prefix unless it is the whole bitmap.
+     * @return The text with its prefix taken off.
+     */
+    private String begin(String text) {
+        started = true;
+        if(text.equals(SnapshotEncoding.BLANK)) {
+            Arrays.fill(pixels, 0xFFFFFFFF);
+            filled = pixels.length;
+            return "";
+        }
+        String prefix = SnapshotEncoding.DEFLATE.getPrefix();
+        if(!text.startsWith(prefix)) {
+            return text;
+        }
+        inflater = new Inflater();
+        buffer = new byte[BUFFER_SIZE];
+        return text.substring(prefix.length());
+    }
+
+    /**
+     * Inflates bytes of the bitmap, if it is compressed, and writes them into the image.
+     */
+    private void consume(byte[] bytes) {
+        if(inflater == null) {
+            write(bytes, bytes.length);
+            return;
+        }
+        inflater.setInput(bytes);
+        try {
+            while(!inflater.finished() && !inflater.needsInput()) {
+                int inflated = inflater.inflate(buffer);
+                if(inflated == 0 && inflater.needsDictionary()) {
+                    throw new IllegalArgumentException("Corrupt compressed bitmap.");
+                }
+                write(buffer, inflated);
+            }
+        } catch(DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt compressed bitmap: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Converts raw pixel data into the image.
+     * @param bytes Four bytes per pixel, in the order alpha, blue, green, red.
+     * @param length How many of the bytes to use.
+     */
+    private void write(byte[] bytes, int length) {
+        int i = 0;
+        while(partialLength > 0 && i < length) {
+            partial[partialLength++] = bytes[i++];
+            if(partialLength == 4) {
+                put(partial, 0);
+                partialLength = 0;
+            }
+        }
+        for(; i + 4 <= length; i += 4) {
+            put(bytes, i);
+        }
+        while(i < length) {
+            partial[partialLength++] = bytes[i++];
+        }
+    }
+
+    private void put(byte[] bytes, int j) {
+        if(filled == pixels.length) {
+            throw new IllegalArgumentException("Bitmap is the wrong size.");
+        }
+        pixels[filled++] = (bytes[j] & 0xFF) << 24 | (bytes[j + 3] & 0xFF) << 16 | (bytes[j + 2] & 0xFF) << 8
+                | bytes[j + 1] & 0xFF;
+    }
+}
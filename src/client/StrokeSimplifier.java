@@ -0,0 +1,191 @@
+package client;
+
+import shared.LineSegment;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reduces the lines of a freehand stroke to fewer, longer ones before they are sent, using the Ramer-Douglas-Peucker
+ * algorithm: a run of points is replaced by a straight line whenever none of them lies further than the tolerance
+ * from it. Dragging the mouse produces many short, nearly collinear lines, so even a tolerance of a pixel or so
+ * removes most of them without a visible difference.
+ * Lines are collected until the stroke finishes, or until it grows long enough that holding it back any longer would
+ * delay other users seeing it. A line that does not start where the previous one ended starts a new polyline.
+ * Counts of lines in and segments out are kept, to report how much is saved.
+ * Thread safety: not thread safe; used from the Swing thread only. The counts may be read from any thread.
+ */
+public class StrokeSimplifier {
+    private static final int MAX_POINTS = 256;
+
+    private final List<Integer> xs = new ArrayList<>();
+    private final List<Integer> ys = new ArrayList<>();
+    private final List<LineSegment> simplified = new ArrayList<>();
+    private double tolerance;
+    private int pending = 0; // Lines added since the last call to take().
+    private volatile long linesIn = 0;
+    private volatile long segmentsOut = 0;
+
+    /**
+     * @param tolerance How far, in pixels, a point may be from the simplified line. 0 only removes points that lie
+     *                  exactly on the line.
+     */
+    public StrokeSimplifier(double tolerance) {
+        setTolerance(tolerance);
+    }
+
+    /**
+     * @param tolerance How far, in pixels, a point may be from the simplified line. Applies from the next stroke on.
+     */
+    public void setTolerance(double tolerance) {
+        if(tolerance < 0) {
+            throw new IllegalArgumentException("Tolerance must not be negative.");
+        }
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * @return How far, in pixels, a point may be from the simplified line.
+     */
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * Adds the next line of the current stroke.
+     * @return Whether enough has built up that the stroke so far should be taken and sent.
+     */
+    public boolean add(int x1, int y1, int x2, int y2) {
+        int last = xs.size() - 1;
+        if(last < 0 || xs.get(last) != x1 || ys.get(last) != y1) {
+            closePolyline();
+            xs.add(x1);
+            ys.add(y1);
+        }
+        xs.add(x2);
+        ys.add(y2);
+        pending++;
+        linesIn++;
+        return xs.size() >= MAX_POINTS;
+    }
+
+    /**
+     * @return How many lines have been added since the last call to take().
+     */
+    public int getPending() {
+        return pending;
+    }
+
+    /**
+     * Simplifies everything added since the last call. A stroke that is still in progress carries on from its last
+     * point, so the pieces join up.
+     * @return The simplified lines, in order.
+     */
+    public List<LineSegment> take() {
+        int lastX = 0;
+        int lastY = 0;
+        boolean open = !xs.isEmpty();
+        if(open) {
+            lastX = xs.get(xs.size() - 1);
+            lastY = ys.get(ys.size() - 1);
+        }
+        closePolyline();
+        if(open) {
+            xs.add(lastX);
+            ys.add(lastY);
+        }
+        List<LineSegment> result = new ArrayList<>(simplified);
+        simplified.clear();
+        pending = 0;
+        segmentsOut += result.size();
+        return result;
+    }
+
+    /**
+     * Ends the current stroke and returns what is left of it.
+     * @return The simplified lines, in order.
+     */
+    public List<LineSegment> finish() {
+        List<LineSegment> result = take();
+        xs.clear();
+        ys.clear();
+        return result;
+    }
+
+    /**
+     * @return How many lines have been added.
+     */
+    public long getLinesIn() {
+        return linesIn;
+    }
+
+    /**
+     * @return How many lines have been returned.
+     */
+    public long getSegmentsOut() {
+        return segmentsOut;
+    }
+
+    /**
+     * @return The lines returned as a fraction of those added, or 1 if none have been added.
+     */
+    public double getReduction() {
+        return linesIn == 0 ? 1 : (double)segmentsOut / linesIn;
+    }
+
+    /**
+     * Simplifies the polyline collected so far into the output and starts an empty one.
+     */
+    private void closePolyline() {
+        int count = xs.size();
+        if(count >= 2) {
+            boolean[] keep = new boolean[count];
+            keep[0] = true;
+            keep[count - 1] = true;
+            // Work through the sub-ranges with an explicit stack, since strokes can be long.
+            List<int[]> ranges = new ArrayList<>();
+            ranges.add(new int[] {0, count - 1});
+            while(!ranges.isEmpty()) {
+                int[] range = ranges.remove(ranges.size() - 1);
+                int farthest = -1;
+                double distance = tolerance;
+                for(int i = range[0] + 1; i < range[1]; i++) {
+                    double d = distance(i, range[0], range[1]);
+                    if(d > distance) {
+                        distance = d;
+                        farthest = i;
+                    }
+                }
+                if(farthest >= 0) {
+                    keep[farthest] = true;
+                    ranges.add(new int[] {range[0], farthest});
+                    ranges.add(new int[] {farthest, range[1]});
+                }
+            }
+            int from = 0;
+            for(int i = 1; i < count; i++) {
+                if(keep[i]) {
+                    simplified.add(new LineSegment(xs.get(from), ys.get(from), xs.get(i), ys.get(i)));
+                    from = i;
+                }
+            }
+        }
+        xs.clear();
+        ys.clear();
+    }
+
+    /**
+     * @return The distance of a point from the line through two others, or from the first if they coincide.
+     */
+    private double distance(int point, int start, int end) {
+        double x = xs.get(point) - xs.get(start);
+        double y = ys.get(point) - ys.get(start);
+        double dx = xs.get(end) - xs.get(start);
+        double dy = ys.get(end) - ys.get(start);
+        double length = Math.hypot(dx, dy);
+        if(length == 0) {
+            return Math.hypot(x, y);
+        }
+        return Math.abs(x * dy - y * dx) / length;
+    }
+}
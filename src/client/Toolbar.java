@@ -33,8 +33,11 @@ public class Toolbar extends JPanel
     private final JSlider brushThickness;
     private static final int MIN_THICKNESS = 0;
     private static final int MAX_THICKNESS = 20;
+    private final JSlider simplifyTolerance;
+    private static final int MAX_TOLERANCE = 5;
     
     private final JLabel brushThicknessLabel;
+    private final JLabel simplifyToleranceLabel;
     private final JLabel pickColourLabel;
     
     private final JButton colourButton;
@@ -70,6 +73,15 @@ public class Toolbar extends JPanel
         brushThicknessLabel.setText("Set Brush Thickness:");
         brushThicknessLabel.setName("brushThicknessLabel");
         
+        simplifyTolerance = new JSlider(JSlider.HORIZONTAL, 0, MAX_TOLERANCE, 0);
+        simplifyTolerance.setMajorTickSpacing(1);
+        simplifyTolerance.setPaintLabels(true);
+        simplifyTolerance.setName("simplifyTolerance");
+        
+        simplifyToleranceLabel = new JLabel();
+        simplifyToleranceLabel.setText("Smooth Strokes (pixels):");
+        simplifyToleranceLabel.setName("simplifyToleranceLabel");
+        
         pickColourLabel = new JLabel("Pick Colour!");
         pickColourLabel.setName("pickColourLabel");
         
@@ -135,6 +147,8 @@ public class Toolbar extends JPanel
         		.addComponent(eraseButton))
         	.addComponent(brushThicknessLabel)
         	.addComponent(brushThickness)
+        	.addComponent(simplifyToleranceLabel)
+        	.addComponent(simplifyTolerance)
         	.addComponent(pickColourLabel)
         	.addGroup(coloursTopS)
         	.addGroup(coloursBottomS).addGap(2)
@@ -148,6 +162,8 @@ public class Toolbar extends JPanel
         		.addComponent(eraseButton)).addGap(20)
         	.addComponent(brushThicknessLabel).addGap(5)
         	.addComponent(brushThickness).addGap(20)
+        	.addComponent(simplifyToleranceLabel).addGap(5)
+        	.addComponent(simplifyTolerance).addGap(20)
         	.addComponent(pickColourLabel).addGap(5)
         	.addGroup(coloursTopP).addGap(2)
         	.addGroup(coloursBottomP).addGap(2)
@@ -194,6 +210,19 @@ public class Toolbar extends JPanel
     	   }
        });
        
+       /*
+        * Listener on the stroke simplification slider
+        */
+       simplifyTolerance.addChangeListener(new ChangeListener()
+       {
+    	   @Override
+    	   public void stateChanged(ChangeEvent arg0) 
+    	   {
+    		   if(!simplifyTolerance.getValueIsAdjusting())
+    			   client.setSimplifyTolerance(simplifyTolerance.getValue());
+    	   }
+       });
+       
        /*
         * Listener on the colour picker button
         */
@@ -212,6 +241,13 @@ public class Toolbar extends JPanel
 		});       
     }
     
+    /*
+     * Used by ClientGUI to show the stroke simplification in use
+     */
+    public void setSimplifyTolerance(int pixels) {
+        simplifyTolerance.setValue(Math.min(pixels, MAX_TOLERANCE));
+    }
+    
     /*
      * Used by ClientGUI to update list of currently connected users
      */
@@ -4,6 +4,7 @@ import shared.LineSegment;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.image.BufferedImage;
 import java.util.List;
 
 /**
@@ -79,11 +80,12 @@ public class WhiteboardCanvasGroup extends JLayeredPane
     }
     
     /**
-     * Sets the backing canvas with the input bitmap and clears the drawing canvas
-     * @param bitmap
+     * Shows the input image on the backing canvas and clears the drawing canvas
+     * @param image
+     * @param painted Run once the image is first on screen, or null
      */
-    public void setBitmap(byte[] bitmap) {
-        backingCanvas.setBitmap(bitmap);
+    public void setImage(BufferedImage image, Runnable painted) {
+        backingCanvas.setImage(image, painted);
         drawingCanvas.clear();
     }
     
@@ -93,4 +95,12 @@ public class WhiteboardCanvasGroup extends JLayeredPane
     public void clearDrawingCanvas() {
         drawingCanvas.clear();
     }
+
+    /**
+     * Removes lines from the drawing canvas once the backing canvas shows them
+     * @param line The last line to remove, counting from the first drawn
+     */
+    public void discardLocalLines(long line) {
+        drawingCanvas.discardLinesThrough(line);
+    }
 }
@@ -1,39 +1,128 @@
 package client;
 
+import shared.DrawCommand;
 import shared.LineSegment;
-
-import javax.xml.bind.DatatypeConverter;
+import shared.MessageDecoder;
+import shared.Protocol;
+import shared.SnapshotEncoding;
 
 import java.awt.*;
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Handles communication with the server. Runs in its own thread to avoid blocking anything.
+ * Asks for binary framing (see shared.Protocol) and compressed bitmaps in HELLO, and falls back to the text
+ * protocol and raw bitmaps if the server does not confirm them.
+ * Lines drawn in quick succession with the same colour and width are coalesced into a single DRAW: they are held for
+ * a short window, or until enough have built up, then sent together. Anything else sent meanwhile goes after them.
+ * Sent DRAWs are tracked by sequence number until the server ACKs them, which it does only after sending the draw
+ * back, so the delegate can drop its local copy of each stroke as the server's copy arrives. The number of DRAWs in
+ * flight and the time they take to be ACKed are recorded.
+ * If the connection drops after HELLO succeeded, the client reconnects with increasing delays and rejoins its
+ * whiteboard. When the server supports resuming, the client tracks the version of the board it has seen and asks
+ * for just the draws it missed; otherwise it is sent a fresh snapshot.
  * Thread safety:
- *   - Sending messages is synchronised to prevent interleaved messages
+ *   - Sending messages is synchronised to prevent interleaved messages. Coalesced lines are guarded by their own lock,
+ *     which is held while they are sent, and always taken before the write lock. Nothing but HELLO is sent until the server
+ *     has answered it, so the wire format cannot change under a message being sent.
  *   - Access to the users and whiteboards sets is locked independently. No method ever tries to acquire both locks
  *     simultaneously, and delegate methods are never called while the lock is held, so deadlock cannot occur.
+ *   - The delegate is called through a SerialDelegate, which queues each call for a thread of its own; snapshots are
+ *     decoded there too, so a large WHITEBOARD never holds up reading from the server. A bitmap sent in CHUNKs is
+ *     decoded piece by piece, and DRAWs received before its last piece are held back until it has been passed on.
+ *     Any previews of it are passed on as they arrive.
  */
 public class WhiteboardClient extends Thread {
     private final String server; // server conncetion string
     private final String username; // client username
-    private final Socket socket; // server socket
-    private final WhiteboardClientDelegate delegate; // delegate to call methods on
-    private PrintWriter out; // Thing to write to to get messages to the server
-    private int drawingSequenceNumber = 0; // local sequence number for drawing operations.
+    private static final int RECONNECT_ATTEMPTS = 8;
+    private static final long FIRST_RECONNECT_DELAY = 250; // milliseconds; doubles after every failed attempt.
+    public static final long DEFAULT_COALESCE_WINDOW = 20; // milliseconds
+    public static final int DEFAULT_COALESCE_SEGMENTS = 64;
+
+    private Socket socket; // server socket, replaced on reconnecting
+    private final SerialDelegate delegate; // delegate to call methods on, from its own thread
+    private volatile OutputStream out; // Thing to write to to get messages to the server
+    private final Object writeLock = new Object(); // Held while writing to out.
+    private MessageDecoder decoder; // Only used on the client's own thread; one per connection.
+    private volatile boolean binary = false; // Whether the server accepted binary framing.
+    private volatile boolean resumable = false; // Whether the server sends board versions.
+    private volatile CountDownLatch negotiated = new CountDownLatch(1); // Released once the server answers HELLO.
+
+    // Only used on the client's own thread.
+    private boolean welcomed = false; // Whether the server has answered HELLO on this connection.
+    private boolean everWelcomed = false; // Whether any connection got that far, making it worth reconnecting.
+    private boolean rejoinPending = false; // Whether to rejoin currentWhiteboard once welcomed.
+    private String currentWhiteboard = null; // The whiteboard to rejoin after reconnecting.
+    private long version = -1; // The version of currentWhiteboard we have seen, or -1 if unknown.
+    private long syncedVersion = -1; // The version given by a SYNC, for the WHITEBOARD that follows it.
+    private List<DrawCommand> deferred = null; // DRAWs received while a bitmap arrives in CHUNKs, or null if none is.
+    private boolean previewing = false; // Whether the CHUNKs arriving are for a preview of the bitmap.
 
     private SortedSet<String> whiteboards = new TreeSet<>(); // Set of known whiteboards
     private SortedSet<String> users = new TreeSet<>(); // Set of users on the current whiteboard
 
-    private boolean connected = false; // Whether we *should* be connected to the server.
+    private volatile boolean connected = false; // Whether we are connected to the server.
+
+    // Lines waiting to be sent as one DRAW, guarded by pendingLock.
+    private final long coalesceWindow; // milliseconds; 0 sends every line at once.
+    private final int coalesceSegments; // Most lines sent in one DRAW.
+    private final Object pendingLock = new Object();
+    private final List<LineSegment> pendingSegments = new ArrayList<>();
+    private Color pendingColour;
+    private float pendingWidth;
+    private boolean flushScheduled = false;
+    private int drawingSequenceNumber = 0; // local sequence number for drawing operations.
+    private long linesSent = 0; // How many lines have been given to sendLine().
+    private final Deque<InFlight> inFlight = new ArrayDeque<>(); // DRAWs not yet ACKed, oldest first.
+    private final List<Unsent> unsent = new ArrayList<>(); // DRAWs held back until the server answers HELLO.
+    private int peakInFlight = 0;
+    private long acknowledged = 0; // DRAWs ACKed.
+    private long ackNanos = 0; // Total time from sending those DRAWs to their ACKs.
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * A DRAW waiting for its ACK.
+     */
+    private static class InFlight {
+        final int sequence;
+        final long lastLine; // The last line it carries, numbered as for WhiteboardClientDelegate.serverACK().
+        final long sent; // System.nanoTime() when it was sent.
+
+        InFlight(int sequence, long lastLine, long sent) {
+            this.sequence = sequence;
+            this.lastLine = lastLine;
+            this.sent = sent;
+        }
+    }
+
+    /**
+     * A DRAW flushed before the wire format was settled, waiting to be sent.
+     */
+    private static class Unsent {
+        final DrawCommand draw;
+        final long lastLine; // The last line it carries, numbered as for WhiteboardClientDelegate.serverACK().
+
+        Unsent(DrawCommand draw, long lastLine) {
+            this.draw = draw;
+            this.lastLine = lastLine;
+        }
+    }
 
     /**
      * Creates the whiteboard client. The client will attempt to connect immediately upon creation,
@@ -43,11 +132,38 @@ public class WhiteboardClient extends Thread {
      * @param username The user's proposed username.
      */
     public WhiteboardClient(WhiteboardClientDelegate delegate, String server, String username) {
+        this(delegate, server, username, DEFAULT_COALESCE_WINDOW, DEFAULT_COALESCE_SEGMENTS);
+    }
+
+    /**
+     * Creates the whiteboard client. The client will attempt to connect immediately upon creation,
+     * but creation is non-blocking.
+     * @param delegate The delegate to fire events to. Cannot be null.
+     * @param server The server connection string (can be server, server:port, :port, or blank). Not null.
+     * @param username The user's proposed username.
+     * @param coalesceWindow How long to hold drawn lines for, in milliseconds, so that they can be sent in one DRAW.
+     *                       0 sends each line as soon as it is drawn.
+     * @param coalesceSegments The most lines to send in one DRAW. Must be positive.
+     */
+    public WhiteboardClient(WhiteboardClientDelegate delegate, String server, String username, long coalesceWindow,
+            int coalesceSegments) {
         super();
+        if(coalesceWindow < 0 || coalesceSegments < 1) {
+            throw new IllegalArgumentException("Bad coalescing window or size.");
+        }
         this.username = username;
         this.server = server;
-        this.delegate = delegate;
-        this.socket = new Socket();
+        this.delegate = new SerialDelegate(delegate);
+        this.coalesceWindow = coalesceWindow;
+        this.coalesceSegments = coalesceSegments;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Draw-coalescer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
         this.start();
     }
 
@@ -60,32 +176,111 @@ public class WhiteboardClient extends Thread {
 
     @Override
     public void run() {
-        connect();
-        hello();
-        BufferedReader in = null;
+        IOException failure = session();
+        long delay = FIRST_RECONNECT_DELAY;
+        int attempts = 0;
+        while(everWelcomed && attempts < RECONNECT_ATTEMPTS) {
+            try {
+                Thread.sleep(delay);
+            } catch(InterruptedException e) {
+                break;
+            }
+            welcomed = false;
+            rejoinPending = true;
+            failure = session();
+            if(welcomed) {
+                // The connection worked, so the next drop starts over.
+                attempts = 0;
+                delay = FIRST_RECONNECT_DELAY;
+            } else {
+                attempts++;
+                delay *= 2;
+            }
+        }
+        if(everWelcomed && failure == null) {
+            failure = new IOException("Lost connection to the server.");
+        }
+        if(failure != null) {
+            delegate.serverConnectionFailed(failure);
+        }
+    }
+
+    /**
+     * Connects to the server, says HELLO, and handles messages until the connection drops.
+     * @return Why the connection could not be made, or null if it was made and later dropped.
+     */
+    private IOException session() {
         try {
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        } catch (IOException e) {
-            connected = false;
-            delegate.serverConnectionFailed(e);
+            connect();
+        } catch(IOException e) {
+            return e;
         }
-        while(connected) {
-            String message = null;
-            try {
-                message = in.readLine();
-            } catch (IOException e) {
-                connected = false;
+        hello();
+        deferred = null;
+        MessageDecoder.Handler handler = new MessageDecoder.Handler() {
+            @Override
+            public void lineReceived(String line) {
+                handleMessage(line);
+                if(negotiated.getCount() > 0) {
+                    negotiated.countDown();
+                    sendUnsent();
+                }
+                if(welcomed && rejoinPending) {
+                    rejoinPending = false;
+                    rejoin();
+                }
             }
-            if(message != null) {
-                handleMessage(message);
+
+            @Override
+            public void drawReceived(DrawCommand draw) {
+                drew(draw);
+            }
+        };
+        byte[] bytes = new byte[8192];
+        try {
+            InputStream in = socket.getInputStream();
+            for(int read = in.read(bytes); read >= 0; read = in.read(bytes)) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, read);
+                while(decoder.next(buffer, handler)) {
+                    // Each message is dispatched to the handler as it is decoded.
+                }
             }
+        } catch (IOException e) {
+            // Treated as the connection dropping.
         }
+        connected = false;
+        negotiated.countDown();
+        abandonInFlight();
         try {
             socket.close();
         } catch(IOException e) 
         {
             e.printStackTrace();
         }
+        return null;
+    }
+
+    /**
+     * Rejoins the whiteboard we were on before reconnecting, resuming from the last version seen if possible.
+     */
+    private void rejoin() {
+        if(currentWhiteboard == null) {
+            return;
+        }
+        if(resumable && version >= 0) {
+            sendMessage("JOIN", currentWhiteboard, Long.toString(version));
+        } else {
+            sendMessage("JOIN", currentWhiteboard);
+        }
+    }
+
+    /**
+     * Counts a DRAW towards the version of the current whiteboard.
+     */
+    private void advanceVersion() {
+        if(version >= 0) {
+            version++;
+        }
     }
 
     /**
@@ -102,12 +297,27 @@ public class WhiteboardClient extends Thread {
             args = Arrays.copyOfRange(components, 1, components.length);
         }
         switch(command.toLowerCase()) {
+            case "features":
+                handleFeatures(args);
+                break;
             case "hello":
                 handleHello(args);
                 break;
             case "whiteboard":
                 handleWhiteboard(args);
                 break;
+            case "chunk":
+                handleChunk(args);
+                break;
+            case "level":
+                handleLevel(args);
+                break;
+            case "sync":
+                handleSync(args);
+                break;
+            case "resume":
+                handleResume(args);
+                break;
             case "error":
                 handleError(args);
                 break;
@@ -129,11 +339,25 @@ public class WhiteboardClient extends Thread {
         }
     }
 
+    /**
+     * Handles FEATURES messages, which confirm the optional features requested in HELLO.
+     * If binary framing was accepted, everything from the server after this message is framed.
+     * @param args The names of the accepted features.
+     */
+    private void handleFeatures(String[] args) {
+        List<String> features = Arrays.asList(args);
+        binary = features.contains(Protocol.FEATURE_BINARY);
+        resumable = features.contains(Protocol.FEATURE_RESUME);
+        decoder.setBinary(binary);
+    }
+
     /**
      * Handles received HELLO messages
      * @param args An array of whiteboard names.
      */
     private void handleHello(String[] args) {
+        welcomed = true;
+        everWelcomed = true;
         // args is a list of available whiteboards.
         String[] whiteboardArray;
         synchronized(whiteboards) {
@@ -145,23 +369,58 @@ public class WhiteboardClient extends Thread {
     }
 
     /**
-     * Handles ACK messages in response to PAINT messages.
+     * Handles ACK messages in response to DRAW messages. ACKs arrive in the order the DRAWs were sent.
      * @param args One element containing the sequence number being ACKed, as a string.
      */
     private void handleACK(String[] args) {
-        if(drawingSequenceNumber == Integer.parseInt(args[0])) {
-            delegate.serverACK();
+        int sequence = Integer.parseInt(args[0]);
+        long now = System.nanoTime();
+        long lastLine = -1;
+        synchronized(pendingLock) {
+            while(!inFlight.isEmpty() && inFlight.peekFirst().sequence <= sequence) {
+                InFlight draw = inFlight.removeFirst();
+                acknowledged++;
+                ackNanos += now - draw.sent;
+                lastLine = draw.lastLine;
+            }
+        }
+        if(lastLine >= 0) {
+            delegate.serverACK(lastLine);
+        }
+    }
+
+    /**
+     * Forgets the DRAWs in flight when the connection drops, since they will never be ACKed. If they reached the
+     * server, rejoining brings them back.
+     */
+    private void abandonInFlight() {
+        long lastLine = -1;
+        synchronized(pendingLock) {
+            if(!inFlight.isEmpty()) {
+                lastLine = inFlight.peekLast().lastLine;
+                inFlight.clear();
+            }
+            if(!unsent.isEmpty()) {
+                lastLine = unsent.get(unsent.size() - 1).lastLine;
+                unsent.clear();
+            }
+        }
+        if(lastLine >= 0) {
+            delegate.serverACK(lastLine);
         }
     }
 
     /**
      * Handles WHITEBOARD messages on joining a new whiteboard
-     * @param args In order: the whiteboard's name, a base64-encoded bitmap, and a list of all other users on it.
+     * @param args In order: the whiteboard's name, an encoded bitmap (see SnapshotEncoding), and a list of all other
+     *             users on it.
      */
     private void handleWhiteboard(String[] args) {
         String name = args[0];
-        byte[] bitmap = DatatypeConverter.parseBase64Binary(args[1]);
         String others[] = Arrays.copyOfRange(args, 2, args.length);
+        currentWhiteboard = name;
+        version = syncedVersion;
+        syncedVersion = -1;
         synchronized(whiteboards) {
             whiteboards.add(args[0]); // This is harmless if it's already there; sets have no duplicates.
         }
@@ -169,7 +428,74 @@ public class WhiteboardClient extends Thread {
             users.clear();
             Collections.addAll(users, others);
         }
-        delegate.joinedWhiteboard(name, bitmap, others);
+        // Decoded on the delegate's thread.
+        if(args[1].equals(SnapshotEncoding.CHUNKED)) {
+            delegate.beginSnapshot(name, others);
+            deferred = new ArrayList<>();
+            previewing = false;
+        } else {
+            delegate.joinedWhiteboard(name, args[1], others);
+            deferred = null;
+        }
+    }
+
+    /**
+     * Handles LEVEL messages, which say that the CHUNKs that follow carry the bitmap of the last WHITEBOARD at the
+     * given scale: a preview if more than 1.
+     * @param args One element: the scale.
+     */
+    private void handleLevel(String[] args) {
+        if(deferred != null) {
+            int scale = Integer.parseInt(args[0]);
+            previewing = scale > 1;
+            delegate.beginLevel(scale);
+        }
+    }
+
+    /**
+     * Handles CHUNK messages, which carry the bitmap of the last WHITEBOARD piece by piece. Once the last has arrived,
+     * any DRAWs that came in meanwhile are passed on, after the bitmap.
+     * @param args In order: how many CHUNKs of the bitmap, or of this level of it, are still to come, and a piece of the
+     *             encoded bitmap.
+     */
+    private void handleChunk(String[] args) {
+        if(deferred == null) {
+            return; // Not expecting one.
+        }
+        boolean last = Integer.parseInt(args[0]) == 0;
+        delegate.snapshotChunk(args.length > 1 ? args[1] : "", last);
+        if(last && !previewing) {
+            List<DrawCommand> draws = deferred;
+            deferred = null;
+            for(DrawCommand draw : draws) {
+                delegate.serverDrew(draw.colour, draw.strokeWidth, draw.segments);
+            }
+        }
+    }
+
+    /**
+     * Handles SYNC messages, which give the version of the whiteboard in the WHITEBOARD message that follows.
+     * @param args One element: the version.
+     */
+    private void handleSync(String[] args) {
+        syncedVersion = Long.parseLong(args[0]);
+    }
+
+    /**
+     * Handles RESUME messages, sent instead of WHITEBOARD when rejoining after a reconnect. The DRAWs we missed
+     * follow, so the canvas is kept as it is.
+     * @param args In order: the whiteboard's name, the version we are resuming from, and a list of all users on it.
+     */
+    private void handleResume(String[] args) {
+        currentWhiteboard = args[0];
+        version = Long.parseLong(args[1]);
+        String[] userArray;
+        synchronized(users) {
+            users.clear();
+            users.addAll(Arrays.asList(args).subList(2, args.length));
+            userArray = users.toArray(new String[users.size()]);
+        }
+        delegate.userListChanged(userArray);
     }
 
     /**
@@ -217,6 +543,16 @@ public class WhiteboardClient extends Thread {
      * @param args An array containing the space-separated components of the error message.
      */
     private void handleError(String[] args) {
+        if(everWelcomed && !welcomed) {
+            // Typically our old connection has not been noticed as gone yet, so our username is still taken.
+            // Drop this connection and let the next attempt try again.
+            try {
+                socket.close();
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
         StringBuilder parts = new StringBuilder();
         for(String arg : args) {
             parts.append(arg);
@@ -237,7 +573,20 @@ public class WhiteboardClient extends Thread {
         }
         Color colour = Color.decode(args[0]);
         float strokeSize = Float.parseFloat(args[1]);
-        delegate.serverDrew(colour, strokeSize, segments);
+        drew(new DrawCommand(0, colour, strokeSize, segments));
+    }
+
+    /**
+     * Passes on a DRAW from the server, or holds it back while a bitmap is still arriving in CHUNKs.
+     * @param draw The DRAW received.
+     */
+    private void drew(DrawCommand draw) {
+        advanceVersion();
+        if(deferred != null) {
+            deferred.add(draw);
+        } else {
+            delegate.serverDrew(draw.colour, draw.strokeWidth, draw.segments);
+        }
     }
 
     /**
@@ -259,7 +608,7 @@ public class WhiteboardClient extends Thread {
     }
 
     /**
-     * Send a drawn line to the server.
+     * Send a drawn line to the server. The line may be held briefly and sent together with those drawn after it.
      * @param colour The colour of the line
      * @param strokeWidth The width of the line, in pixels
      * @param x1 x-coordinate of the start point
@@ -268,8 +617,147 @@ public class WhiteboardClient extends Thread {
      * @param y2 y-coordinate of the end point
      */
     public void sendLine(Color colour, float strokeWidth, int x1, int y1, int x2, int y2) {
-        sendMessage("DRAW", Integer.toString(++drawingSequenceNumber), Integer.toString(colour.getRGB()), Float.toString(strokeWidth),
-                Integer.toString(x1),  Integer.toString(y1),  Integer.toString(x2),  Integer.toString(y2));
+        sendLines(colour, strokeWidth, Collections.singletonList(new LineSegment(x1, y1, x2, y2)), 1);
+    }
+
+    /**
+     * Send lines standing in for some the user drew, such as a simplified stroke, to the server. Like sendLine(), the
+     * lines may be held briefly and sent together with later ones.
+     * @param colour The colour of the lines
+     * @param strokeWidth The width of the lines, in pixels
+     * @param segments The lines to send
+     * @param drawn How many lines the user drew that these stand for, for numbering them in
+     *              WhiteboardClientDelegate.serverACK().
+     */
+    public void sendLines(Color colour, float strokeWidth, List<LineSegment> segments, int drawn) {
+        synchronized(pendingLock) {
+            if(!pendingSegments.isEmpty() && (!colour.equals(pendingColour) || strokeWidth != pendingWidth)) {
+                flushLines();
+            }
+            pendingColour = colour;
+            pendingWidth = strokeWidth;
+            pendingSegments.addAll(segments);
+            linesSent += drawn;
+            if(pendingSegments.isEmpty()) {
+                return; // Nothing to send; the lines drawn are simply ACKed along with the next DRAW.
+            }
+            if(coalesceWindow == 0 || pendingSegments.size() >= coalesceSegments) {
+                flushLines();
+            } else if(!flushScheduled) {
+                flushScheduled = true;
+                flusher.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized(pendingLock) {
+                            flushScheduled = false;
+                            flushLines();
+                        }
+                    }
+                }, coalesceWindow, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Sends any lines still waiting to be coalesced. If the server has yet to answer HELLO, they are held back rather
+     * than waited on, and sent by sendUnsent() once it has, so that drawing never blocks. Lines drawn while there is
+     * no connection are dropped and ACKed at once, like the DRAWs in flight when it dropped: the server never sees
+     * them, and rejoining replaces the canvas with its copy of the whiteboard.
+     */
+    public void flushLines() {
+        synchronized(pendingLock) {
+            if(pendingSegments.isEmpty()) {
+                return;
+            }
+            List<LineSegment> segments = new ArrayList<>(pendingSegments);
+            pendingSegments.clear();
+            if(!connected) {
+                delegate.serverACK(linesSent);
+                return;
+            }
+            DrawCommand draw = new DrawCommand(++drawingSequenceNumber, pendingColour, pendingWidth, segments);
+            unsent.add(new Unsent(draw, linesSent));
+            if(negotiated.getCount() == 0) {
+                sendUnsent();
+            }
+        }
+    }
+
+    /**
+     * Sends the DRAWs held back by flushLines(), in order.
+     */
+    private void sendUnsent() {
+        synchronized(pendingLock) {
+            for(Unsent held : unsent) {
+                DrawCommand draw = held.draw;
+                inFlight.add(new InFlight(draw.sequence, held.lastLine, System.nanoTime()));
+                peakInFlight = Math.max(peakInFlight, inFlight.size());
+                if(binary) {
+                    write(Protocol.drawFrame(draw.sequence, draw.colour, draw.strokeWidth, draw.segments));
+                    continue;
+                }
+                StringBuilder line = new StringBuilder("DRAW ");
+                line.append(draw.sequence).append(' ').append(draw.colour.getRGB()).append(' ')
+                        .append(draw.strokeWidth);
+                for(LineSegment segment : draw.segments) {
+                    line.append(' ').append(segment.x1).append(' ').append(segment.y1).append(' ')
+                            .append(segment.x2).append(' ').append(segment.y2);
+                }
+                write(line.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+            }
+            unsent.clear();
+        }
+    }
+
+    /**
+     * @return The number of DRAWs sent and not yet ACKed.
+     */
+    public int getInFlight() {
+        synchronized(pendingLock) {
+            return inFlight.size();
+        }
+    }
+
+    /**
+     * @return The most DRAWs there have been in flight at once.
+     */
+    public int getPeakInFlight() {
+        synchronized(pendingLock) {
+            return peakInFlight;
+        }
+    }
+
+    /**
+     * @return The number of DRAWs ACKed.
+     */
+    public long getAcknowledged() {
+        synchronized(pendingLock) {
+            return acknowledged;
+        }
+    }
+
+    /**
+     * @return The mean time from sending a DRAW to receiving its ACK, in milliseconds, or 0 if none has been ACKed.
+     */
+    public double getMeanAckMillis() {
+        synchronized(pendingLock) {
+            return acknowledged == 0 ? 0 : ackNanos / 1e6 / acknowledged;
+        }
+    }
+
+    /**
+     * @return The number of whiteboard snapshots decoded.
+     */
+    public long getSnapshotsDecoded() {
+        return delegate.getDecoded();
+    }
+
+    /**
+     * @return The mean time taken to decode a whiteboard snapshot, in milliseconds, or 0 if none has been.
+     */
+    public double getMeanDecodeMillis() {
+        long decoded = delegate.getDecoded();
+        return decoded == 0 ? 0 : delegate.getDecodeNanos() / 1e6 / decoded;
     }
 
     /**
@@ -291,9 +779,10 @@ public class WhiteboardClient extends Thread {
     }
 
     /**
-     * Connects to the server.
+     * Connects to the server, starting a fresh negotiation.
+     * @throws IOException If the connection could not be made.
      */
-    private void connect() {
+    private void connect() throws IOException {
         String hostname = "localhost";
         int port = 6005;
         if(server.startsWith(":") && server.length() > 1) {
@@ -306,26 +795,28 @@ public class WhiteboardClient extends Thread {
             }
         }
         SocketAddress address = new InetSocketAddress(hostname, port);
-        try {
-            socket.connect(address);
-            try {
-                out = new PrintWriter(socket.getOutputStream(), true);
-                connected = true;
-            } catch (IOException e) {
-                connected = false;
-                delegate.serverConnectionFailed(e);
-            }
-        } catch (IOException e) {
-            connected = false;
-            delegate.serverConnectionFailed(e);
-        }
+        socket = new Socket();
+        socket.connect(address);
+        decoder = new MessageDecoder();
+        binary = false;
+        resumable = false;
+        negotiated = new CountDownLatch(1);
+        out = new BufferedOutputStream(socket.getOutputStream());
+        connected = true;
     }
 
     /**
-     * Sends HELLO message to the server, thereby setting the username.
+     * Sends HELLO message to the server, thereby setting the username and requesting binary framing, resuming,
+     * compressed bitmaps, blank board markers, and chunked bitmaps with previews.
      */
     private void hello() {
-        sendMessage("HELLO", this.username);
+        if(out == null) {
+            return;
+        }
+        String features = Protocol.FEATURE_BINARY + " " + Protocol.FEATURE_RESUME + " " + Protocol.FEATURE_BLANK + " "
+                + Protocol.FEATURE_CHUNKED + " " + Protocol.FEATURE_PROGRESSIVE + " "
+                + SnapshotEncoding.DEFLATE.getFeature();
+        write(("HELLO " + this.username + " " + features + "\n").getBytes(StandardCharsets.UTF_8));
     }
 
     /**
@@ -334,6 +825,9 @@ public class WhiteboardClient extends Thread {
      * @param args Arguments to attach to the command, if any.
      */
     private void sendMessage(String command, String... args) {
+        flushLines(); // Lines drawn before, say, a JOIN belong to the old whiteboard.
+        awaitNegotiation();
+        sendUnsent(); // Unless the reading thread already has.
         sendMessageWithArgs(command, args);
     }
 
@@ -343,12 +837,49 @@ public class WhiteboardClient extends Thread {
      * @param args Arguments to attach to the command, if any.
      */
     private void sendMessageWithArgs(String command, String[] args) {
-        synchronized(out) {
-            out.print(command);
-            for(String arg : args) {
-                out.print(" " + arg);
+        StringBuilder line = new StringBuilder(command);
+        for(String arg : args) {
+            line.append(" ");
+            line.append(arg);
+        }
+        awaitNegotiation();
+        if(binary) {
+            write(Protocol.textFrame(line.toString()));
+        } else {
+            line.append("\n");
+            write(line.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Writes an encoded message to the server and flushes it.
+     * @param message The encoded message.
+     */
+    private void write(byte[] message) {
+        synchronized(writeLock) {
+            if(out == null) {
+                return;
+            }
+            try {
+                out.write(message);
+                out.flush();
+            } catch(IOException e) {
+                // A broken connection is noticed and reported by the reading thread.
             }
-            out.println();
+        }
+    }
+
+    /**
+     * Waits until the server has answered HELLO, so that the wire format is settled.
+     */
+    private void awaitNegotiation() {
+        if(!connected) {
+            return; // Reconnecting; whatever is sent now is lost.
+        }
+        try {
+            negotiated.await();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 }
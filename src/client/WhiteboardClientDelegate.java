@@ -3,11 +3,13 @@ package client;
 import shared.LineSegment;
 
 import java.awt.*;
+import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.List;
 
 /**
- * Delegate used by the WhiteboardClient to notify an interested party of changes.
+ * Delegate used by the WhiteboardClient to notify an interested party of changes. Its methods are called one at a
+ * time, in order, from a thread of the client's own.
  */
 public interface WhiteboardClientDelegate {
     /**
@@ -26,10 +28,20 @@ public interface WhiteboardClientDelegate {
     /**
      * Called when the client joins a new whiteboard (and, implicitly, left one it was already on).
      * @param whiteboard The name of the whiteboard joined
-     * @param bitmap A bitmap representing the current content of the whiteboard, in 4-byte ARGB format.
+     * @param image The current content of the whiteboard, as a TYPE_INT_ARGB image the delegate may keep and draw on.
      * @param usernames An array of usernames on the current board.
      */
-    public void joinedWhiteboard(String whiteboard, byte bitmap[], String usernames[]);
+    public void joinedWhiteboard(String whiteboard, BufferedImage image, String usernames[]);
+
+    /**
+     * Called while joining a whiteboard, before joinedWhiteboard(), with a rough copy of its content to show until
+     * the real one arrives. May be called more than once, each time with a sharper copy.
+     * @param whiteboard The name of the whiteboard being joined
+     * @param image A copy of the whiteboard's content at reduced resolution, scaled up to full size, as a
+     *              TYPE_INT_ARGB image the delegate may keep.
+     * @param usernames An array of usernames on the board.
+     */
+    public void previewedWhiteboard(String whiteboard, BufferedImage image, String usernames[]);
 
     /**
      * Called when the server indicates that someone drew on the whiteboard
@@ -46,10 +58,13 @@ public interface WhiteboardClientDelegate {
     public void serverError(String message);
 
     /**
-     * Called when (and only when) an ACK message from the server indicates that the server's view of our
-     * drawing is current. Not called if outdated ACKs are received.
+     * Called when an ACK message from the server shows that it has applied our draws up to a point. The server sends
+     * each ACK after the draw itself, so serverDrew() has already been called for them. Also called for draws that
+     * were in flight when the connection dropped, which will never be ACKed.
+     * @param line The last of the lines given to WhiteboardClient.sendLine() that the server has dealt with, counting
+     *             from 1.
      */
-    public void serverACK();
+    public void serverACK(long line);
 
     /**
      * Called when the set of users on the current whiteboard changes.
@@ -4,6 +4,7 @@ import shared.LineSegment;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.*;
 import java.util.List;
@@ -13,11 +14,26 @@ public class WhiteboardController implements WhiteboardClientDelegate, Whiteboar
     private WhiteboardPicker picker;
     private ClientGUI gui = null;
     private boolean ready = false;
+    private final StrokeSimplifier simplifier = new StrokeSimplifier(Integer.getInteger("whiteboard.simplify", 0));
+    private Color strokeColour; // The pen of the stroke being simplified.
+    private float strokeWidth;
+    private volatile long joinRequested = 0; // System.nanoTime() when the user last asked for a whiteboard, or 0.
+    private volatile int joinsPainted = 0;
+    private volatile long joinPaintNanos = 0; // Total time from asking for a whiteboard to it being on screen.
+    private boolean previewShown = false; // Whether a preview of the whiteboard being joined is on screen already.
+    private volatile int previewsPainted = 0;
+    private volatile long previewPaintNanos = 0; // Total time from asking for a whiteboard to a preview being on screen.
 
     /**
      * Instantiates WhiteboardClient in own thread
      */
     public WhiteboardController() {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                reportStatistics();
+            }
+        });
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
@@ -50,7 +66,9 @@ public class WhiteboardController implements WhiteboardClientDelegate, Whiteboar
             System.exit(0);
             return;
         }
-        client = new WhiteboardClient(this, server, username);
+        long window = Long.getLong("whiteboard.coalesce", WhiteboardClient.DEFAULT_COALESCE_WINDOW);
+        int segments = Integer.getInteger("whiteboard.coalesce-segments", WhiteboardClient.DEFAULT_COALESCE_SEGMENTS);
+        client = new WhiteboardClient(this, server, username, window, segments);
     }
 
     @Override
@@ -69,16 +87,54 @@ public class WhiteboardController implements WhiteboardClientDelegate, Whiteboar
     }
 
     @Override
-    public void joinedWhiteboard(String whiteboard, byte[] bitmap, String[] usernames) {
-        String[] whiteboards = client.getWhiteboards();
+    public void joinedWhiteboard(final String whiteboard, BufferedImage image, String[] usernames) {
         System.out.println("Joined whiteboard " + whiteboard);
+        final long requested = joinRequested;
+        joinRequested = 0;
+        previewShown = false;
+        show(whiteboard, image, requested == 0 ? null : new Runnable() {
+            @Override
+            public void run() {
+                long nanos = System.nanoTime() - requested;
+                joinPaintNanos += nanos;
+                joinsPainted++;
+                System.out.printf("Whiteboard %s on screen %.1f ms after asking for it%n", whiteboard, nanos / 1e6);
+            }
+        });
+    }
+
+    @Override
+    public void previewedWhiteboard(final String whiteboard, BufferedImage image, String[] usernames) {
+        final long requested = previewShown ? 0 : joinRequested;
+        previewShown = true;
+        show(whiteboard, image, requested == 0 ? null : new Runnable() {
+            @Override
+            public void run() {
+                long nanos = System.nanoTime() - requested;
+                previewPaintNanos += nanos;
+                previewsPainted++;
+                System.out.printf("Preview of whiteboard %s on screen %.1f ms after asking for it%n", whiteboard,
+                        nanos / 1e6);
+            }
+        });
+    }
+
+    /**
+     * Puts a whiteboard on screen, opening the main window if this is the first.
+     * @param whiteboard The whiteboard's name
+     * @param image What to show on the canvas.
+     * @param painted Run once the image has been painted, or null.
+     */
+    private void show(String whiteboard, BufferedImage image, Runnable painted) {
+        String[] whiteboards = client.getWhiteboards();
         if(!ready && gui == null) {
             gui = new ClientGUI();
             gui.setCanvasDelegate(this);
+            gui.showSimplifyTolerance((int)simplifier.getTolerance());
             gui.setVisible(true);
         }
 
-        gui.setCanvasBitmap(bitmap);
+        gui.setCanvasImage(image, painted);
         gui.setWhiteboardName(whiteboard);
         if(!ready) {
             gui.setWhiteboardsList(whiteboards);
@@ -113,32 +169,95 @@ public class WhiteboardController implements WhiteboardClientDelegate, Whiteboar
     }
 
     @Override
-    public void serverACK() {
-        gui.clearDrawingCanvas();
+    public void serverACK(long line) {
+        if(gui == null) return;
+        gui.discardLocalLines(line);
     }
 
     @Override
     public void whiteboardPicked(String name) {
+        joinRequested = System.nanoTime();
         client.joinWhiteboard(name);
     }
 
     @Override
     public void requestedWhiteboardCreation(String name) {
+        joinRequested = System.nanoTime();
         client.createWhiteboard(name);
     }
 
     @Override
     public void whiteboardCreated(String name) {
+        joinRequested = System.nanoTime();
         client.createWhiteboard(name);
     }
 
     @Override
     public void drewLine(Color colour, float strokeWidth, int x1, int y1, int x2, int y2) {
-        client.sendLine(colour, strokeWidth, x1, y1, x2, y2);
+        if(simplifier.getTolerance() == 0) {
+            client.sendLine(colour, strokeWidth, x1, y1, x2, y2);
+            return;
+        }
+        if(simplifier.getPending() > 0 && (!colour.equals(strokeColour) || strokeWidth != this.strokeWidth)) {
+            sendSimplified(true);
+        }
+        strokeColour = colour;
+        this.strokeWidth = strokeWidth;
+        if(simplifier.add(x1, y1, x2, y2)) {
+            sendSimplified(false);
+        }
+    }
+
+    @Override
+    public void finishedStroke() {
+        sendSimplified(true);
+        client.flushLines();
+    }
+
+    @Override
+    public void changedSimplifyTolerance(int pixels) {
+        sendSimplified(true);
+        simplifier.setTolerance(pixels);
+    }
+
+    /**
+     * Sends the lines collected by the simplifier.
+     * @param finished Whether the stroke has ended, rather than just grown long.
+     */
+    private void sendSimplified(boolean finished) {
+        int drawn = simplifier.getPending();
+        List<LineSegment> segments = finished ? simplifier.finish() : simplifier.take();
+        if(drawn > 0) {
+            client.sendLines(strokeColour, strokeWidth, segments, drawn);
+        }
+    }
+
+    /**
+     * Prints how much simplifying strokes saved, how long whiteboards took to appear, and how long draws took to be
+     * ACKed.
+     */
+    private void reportStatistics() {
+        if(simplifier.getLinesIn() > 0) {
+            System.out.printf("Strokes: %d lines drawn sent as %d (%.0f%%)%n", simplifier.getLinesIn(),
+                    simplifier.getSegmentsOut(), simplifier.getReduction() * 100);
+        }
+        if(joinsPainted > 0) {
+            System.out.printf("Joins: %d, %.1f ms mean to first paint, %.1f ms mean decoding%n", joinsPainted,
+                    joinPaintNanos / 1e6 / joinsPainted, client.getMeanDecodeMillis());
+        }
+        if(previewsPainted > 0) {
+            System.out.printf("Previews: %d, %.1f ms mean to first paint%n", previewsPainted,
+                    previewPaintNanos / 1e6 / previewsPainted);
+        }
+        if(client != null && client.getAcknowledged() > 0) {
+            System.out.printf("Draws: %d ACKed, %.1f ms mean round trip, at most %d in flight%n",
+                    client.getAcknowledged(), client.getMeanAckMillis(), client.getPeakInFlight());
+        }
     }
 
     @Override
     public void requestedWhiteboardChange(String name) {
+        joinRequested = System.nanoTime();
         client.joinWhiteboard(name);
     }    
 }
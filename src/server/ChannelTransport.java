@@ -0,0 +1,257 @@
+package server;
+
+import shared.MessageDecoder;
+import shared.Protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A non-blocking connection owned by an EventLoop. Incoming bytes are decoded into messages and handed to the
+ * connection's Client; outgoing lines are queued and written whenever the socket can take them.
+ * Thread safety:
+ *   - Reading, flushing and closing only happen on the owning event loop's thread.
+ *   - write(), close() and abort() may be called from any thread, the loop's included; they only update the
+ *     OutboundQueue and flags, and ask the loop to flush on its next iteration. Teardown, and with it
+ *     Client.disconnected(), only ever happens there, never from inside a caller that may hold locks.
+ */
+public class ChannelTransport implements Transport {
+    // Runs offloaded tasks, such as encoding snapshots for joins, so they never stall an event loop.
+    private static final Executor WORKERS = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Channel-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private final Client client;
+    private final MessageDecoder decoder = new MessageDecoder(Protocol.MAX_CLIENT_FRAME_LENGTH);
+    private final OutboundQueue outbound;
+    private ByteBuffer writing = null; // Message taken off the queue but not yet completely written.
+    private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+    private SelectionKey key;
+    private volatile boolean closing = false; // No more input is processed once set; closes after the last flush.
+    private volatile boolean aborting = false; // Closes at the next flush without writing anything further.
+    private volatile boolean closed = false;
+    private boolean suspended = false; // Whether input is paused for an offloaded task. Only touched on the loop.
+    private ByteBuffer leftover = null; // Input received before a pause but not yet processed.
+
+    /**
+     * @param manager The server's whiteboard manager.
+     * @param channel The accepted connection. Must already be in non-blocking mode.
+     * @param loop The event loop that will service this connection.
+     */
+    public ChannelTransport(WhiteboardManager manager, SocketChannel channel, EventLoop loop) {
+        this.channel = channel;
+        this.loop = loop;
+        this.outbound = new OutboundQueue(manager.getOptions().getQueueCapacity());
+        this.client = new Client(manager, this);
+    }
+
+    /**
+     * Registers the channel with the loop's selector. Called on the loop thread.
+     * @param key The key the channel was registered under.
+     */
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    @Override
+    public boolean write(Message message) {
+        if(closed) {
+            return true;
+        }
+        if(!outbound.offer(message)) {
+            return false;
+        }
+        scheduleFlush();
+        return true;
+    }
+
+    @Override
+    public void replaceQueued(List<Message> messages, Collection<Message> kept) {
+        outbound.replace(messages, kept);
+        scheduleFlush();
+    }
+
+    @Override
+    public void close() {
+        closing = true;
+        scheduleFlush();
+    }
+
+    @Override
+    public void abort() {
+        closing = true;
+        aborting = true;
+        outbound.clear();
+        scheduleFlush();
+    }
+
+    /**
+     * Stops reading the client's input and runs the task on a worker, then has the loop carry on from where it left
+     * off. Called on the loop thread, while handling input.
+     */
+    @Override
+    public void offload(final Runnable task) {
+        suspended = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        WORKERS.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch(RuntimeException e) {
+                    e.printStackTrace();
+                    abort();
+                } finally {
+                    loop.requestResume(ChannelTransport.this);
+                }
+            }
+        });
+    }
+
+    /**
+     * Processes any input left over from before an offloaded task, then resumes reading. Called on the loop thread.
+     */
+    void resume() {
+        if(closed) {
+            return;
+        }
+        suspended = false;
+        ByteBuffer pending = leftover;
+        leftover = null;
+        try {
+            if(pending != null) {
+                process(pending);
+            }
+        } catch(IOException e) {
+            shutdown();
+            return;
+        }
+        if(!suspended) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Asks the loop to flush on its next iteration. Never flushes directly, even on the loop thread: callers may be
+     * iterating a board's users under its lock, and a flush can shut the connection down and remove this client
+     * from that board.
+     */
+    private void scheduleFlush() {
+        if(flushRequested.compareAndSet(false, true)) {
+            loop.requestFlush(this);
+        }
+    }
+
+    /**
+     * Reads whatever is available and passes complete messages to the client. Called on the loop thread.
+     * @param buffer Scratch buffer owned by the loop.
+     */
+    void read(ByteBuffer buffer) {
+        buffer.clear();
+        try {
+            if(channel.read(buffer) < 0) {
+                shutdown();
+                return;
+            }
+            buffer.flip();
+            process(buffer);
+        } catch(IOException e) {
+            shutdown();
+        }
+    }
+
+    /**
+     * Passes complete messages to the client until the input runs out or a message pauses it, keeping whatever is
+     * left in the latter case.
+     * @param buffer The input. May be the loop's scratch buffer, so is never kept.
+     * @throws IOException If the input is malformed.
+     */
+    private void process(ByteBuffer buffer) throws IOException {
+        while(!closing && !suspended && decoder.next(buffer, client)) {
+            decoder.setBinary(client.isBinary());
+            if(!client.isConnected()) {
+                close();
+            }
+        }
+        if(suspended && !closing && buffer.hasRemaining()) {
+            leftover = ByteBuffer.allocate(buffer.remaining());
+            leftover.put(buffer).flip();
+        }
+    }
+
+    /**
+     * Writes as much queued output as the socket will take, registering for OP_WRITE if anything is left over.
+     * Called on the loop thread.
+     */
+    void flush() {
+        flushRequested.set(false);
+        if(closed || key == null) {
+            return;
+        }
+        if(aborting) {
+            shutdown();
+            return;
+        }
+        try {
+            while(true) {
+                if(writing == null) {
+                    Message next = outbound.poll();
+                    if(next == null) {
+                        break;
+                    }
+                    writing = next.buffer();
+                }
+                channel.write(writing);
+                if(writing.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writing = null;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if(closing) {
+                shutdown();
+            }
+        } catch(IOException e) {
+            shutdown();
+        }
+    }
+
+    /**
+     * Tears down the connection and removes the client from the server. Called on the loop thread.
+     */
+    void shutdown() {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        closing = true;
+        outbound.close();
+        outbound.clear();
+        if(key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+        client.disconnected();
+    }
+}
@@ -0,0 +1,264 @@
+package server;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Bounds how much of the journal has to be replayed on startup. Every so often, or after enough draws, it writes a
+ * compressed copy of each whiteboard that has changed since its last checkpoint, then deletes the journal segments
+ * that every board's checkpoint now covers. Recovery loads the checkpoints and replays only the journal's tail.
+ * Checkpoints are files next to the journal, one per board, holding
+ *
+ *   int magic, long version, int name length, UTF-8 name, deflated bitmap (see Whiteboard.Snapshot.getPixels())
+ *
+ * Each is written to a temporary file, forced to disk and then renamed over the old one, so a crash leaves either the
+ * old checkpoint or the new one. Journal segments are only deleted once every checkpoint covering them is on disk.
+ * Thread safety: checkpoints are taken on the checkpointer's own thread, or by whoever calls checkpoint(), which is
+ * synchronised. Boards are read through immutable snapshots and never locked for longer than it takes to capture one.
+ */
+public class Checkpointer implements Runnable {
+    private static final int MAGIC = 0x57424350; // "WBCP"
+    private static final String SUFFIX = ".ckpt";
+    private static final int MAX_HEX_NAME = 64; // The longest name, in bytes, to hex-encode rather than hash in file names.
+    private static final long POLL_INTERVAL = 1000; // milliseconds
+
+    private final WhiteboardManager manager;
+    private final Journal journal;
+    private final long interval;
+    private final long operations;
+    private final Map<String, Long> written = new HashMap<>(); // The version of each board's checkpoint on disk.
+
+    /**
+     * @param manager The whiteboards to checkpoint
+     * @param journal The journal to truncate.
+     * @param interval How often to checkpoint, in milliseconds.
+     * @param operations How many journal records to allow before checkpointing early.
+     */
+    public Checkpointer(WhiteboardManager manager, Journal journal, long interval, long operations) {
+        this.manager = manager;
+        this.journal = journal;
+        this.interval = interval;
+        this.operations = operations;
+        for(File file : checkpointFiles(journal.getDirectory())) {
+            try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                long version = readHeader(in);
+                written.put(readName(in), version);
+            } catch(IOException e) {
+                // Rewritten at the next checkpoint.
+            }
+        }
+    }
+
+    /**
+     * Starts checkpointing in the background.
+     */
+    public void start() {
+        Thread thread = new Thread(this, "Checkpointer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        long last = System.currentTimeMillis();
+        long appended = journal.getAppended();
+        while(true) {
+            try {
+                Thread.sleep(Math.min(POLL_INTERVAL, interval));
+            } catch(InterruptedException e) {
+                return;
+            }
+            if(System.currentTimeMillis() - last < interval && journal.getAppended() - appended < operations) {
+                continue;
+            }
+            last = System.currentTimeMillis();
+            appended = journal.getAppended();
+            try {
+                checkpoint();
+            } catch(IOException e) {
+                // The journal still holds everything; try again next time.
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes a checkpoint of every whiteboard that has changed since its last one, then truncates the journal.
+     * @return The number of whiteboards written.
+     * @throws IOException If a checkpoint could not be written. The other boards are still checkpointed, but the
+     *                     journal is left alone.
+     */
+    public synchronized int checkpoint() throws IOException {
+        // Everything before this segment was applied before any of the snapshots below are taken, and every board it
+        // created is listed: boards are journalled and published under the creation lock.
+        long segment;
+        List<Whiteboard> boards;
+        Lock creation = manager.getCreationLock();
+        creation.lock();
+        try {
+            segment = journal.getCurrentSegment();
+            boards = manager.getWhiteboards();
+        } finally {
+            creation.unlock();
+        }
+        int count = 0;
+        IOException failure = null;
+        for(Whiteboard board : boards) {
+            // Check the version first, so that a board spilled to disk is not reloaded just to find it unchanged.
+            Long version = written.get(board.getName());
+            if(version != null && version == board.getVersion()) {
+                continue;
+            }
+            Whiteboard.Snapshot snapshot = board.getSnapshot();
+            try {
+                write(journal.getDirectory(), board.getName(), snapshot);
+            } catch(IOException e) {
+                // One board's failure must not stop the rest being checkpointed.
+                if(failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+                continue;
+            }
+            written.put(board.getName(), snapshot.getVersion());
+            count++;
+        }
+        if(count > 0) {
+            syncDirectory(journal.getDirectory());
+        }
+        if(failure != null) {
+            throw failure;
+        }
+        journal.truncateBefore(segment);
+        return count;
+    }
+
+    /**
+     * Makes renames in a directory durable, where the platform allows it.
+     */
+    private static void syncDirectory(File directory) {
+        try(FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch(IOException e) {
+            // Not supported everywhere; the renames are still atomic.
+        }
+    }
+
+    private static void write(File directory, String name, Whiteboard.Snapshot snapshot) throws IOException {
+        File file = new File(directory, fileName(name));
+        File temporary = new File(directory, fileName(name) + ".tmp");
+        try(FileOutputStream stream = new FileOutputStream(temporary)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(MAGIC);
+            out.writeLong(snapshot.getVersion());
+            byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(encoded.length);
+            out.write(encoded);
+            Whiteboard.writePixels(out, snapshot.getPixels());
+            out.flush();
+            stream.getFD().sync();
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return A file name for a board's checkpoint that is safe whatever characters the board's name contains.
+     */
+    private static String fileName(String name) {
+        return safeFileName(name) + SUFFIX;
+    }
+
+    /**
+     * @param name A whiteboard's name.
+     * @return The name hex-encoded, so that it can be used in a file name whatever characters it contains. Long names
+     *         are hashed instead, and prefixed so as not to clash with a short name, to stay within the file system's
+     *         limit on the length of a file name.
+     */
+    static String safeFileName(String name) {
+        byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+        if(encoded.length <= MAX_HEX_NAME) {
+            return hex(encoded);
+        }
+        try {
+            return "h" + hex(MessageDigest.getInstance("SHA-256").digest(encoded));
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available.", e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for(byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static File[] checkpointFiles(File directory) {
+        return directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+    }
+
+    /**
+     * Reads the start of a checkpoint, up to its name.
+     * @return The version of the board it holds.
+     */
+    private static long readHeader(DataInputStream in) throws IOException {
+        if(in.readInt() != MAGIC) {
+            throw new IOException("Not a checkpoint.");
+        }
+        return in.readLong();
+    }
+
+    /**
+     * Reads a board's name from a checkpoint, following its header.
+     */
+    private static String readName(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if(length < 0) {
+            throw new IOException("Bad name length " + length + ".");
+        }
+        byte[] encoded = new byte[length];
+        in.readFully(encoded);
+        return new String(encoded, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads back every checkpoint in a directory.
+     * @param directory The journal's directory.
+     * @param historySize How many recent draws each restored whiteboard keeps for resuming clients.
+     * @param journal The journal the restored whiteboards record new draws in.
+     * @return The restored whiteboards, without users.
+     * @throws IOException If a checkpoint is unreadable. The journal may no longer hold what it covered, so this is
+     *                     not something to carry on from.
+     */
+    static List<Whiteboard> restore(File directory, int historySize, Journal journal) throws IOException {
+        List<Whiteboard> boards = new ArrayList<>();
+        for(File file : checkpointFiles(directory)) {
+            try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                long version = readHeader(in);
+                String name = readName(in);
+                byte[] pixels = Whiteboard.readPixels(in);
+                Whiteboard board = new Whiteboard(name, historySize, journal);
+                board.restore(pixels, version);
+                boards.add(board);
+            } catch(IOException e) {
+                throw new IOException("Damaged checkpoint " + file + ": " + e.getMessage(), e);
+            }
+        }
+        return boards;
+    }
+}
@@ -1,72 +1,207 @@
 package server;
+import shared.DrawCommand;
 import shared.LineSegment;
+import shared.MessageDecoder;
+import shared.Protocol;
+import shared.SnapshotEncoding;
 
 import java.awt.Color;
 import java.io.*;
 import java.util.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Represents a client from the server's perspective, and handles all
  * network communication with it.
+ * A client either owns its socket and reads from it in run() on a thread supplied by the server (platform or
+ * virtual), or is driven by an EventLoop through the MessageDecoder.Handler methods and disconnected(), writing
+ * through whichever Transport it was given. Messages go out as text lines or, if the client negotiated it in HELLO,
+ * as binary frames (see shared.Protocol).
  * Thread safety:
- *   - All incoming messages are on a single thread.
- *   - Sending outgoing messages is protected by a mutex to prevent mingled messages.
+ *   - All incoming messages are on a single thread. Draws are submitted to the whiteboard's writer rather than
+ *     applied on that thread (see Whiteboard).
+ *   - Outgoing messages are queued on the transport, so sending never blocks. A client whose queue overflows is
+ *     resynchronised or disconnected according to the server's OverflowPolicy.
+ *   - While a client is joining a whiteboard, messages sent to it are held back until its snapshot of the board has
+ *     been encoded and queued, so that it sees exactly the DRAWs made after the snapshot, in order. The snapshot is
+ *     encoded outside every lock.
  *   - There is no externally mutable state aside from message sending.
  */
-public class Client extends Thread implements Comparable<Client> {
+public class Client implements Runnable, Comparable<Client>, MessageDecoder.Handler {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final List<String> SUPPORTED_FEATURES = Arrays.asList(Protocol.FEATURE_BINARY,
+            Protocol.FEATURE_RESUME, Protocol.FEATURE_BLANK, Protocol.FEATURE_CHUNKED, Protocol.FEATURE_PROGRESSIVE,
+            SnapshotEncoding.DEFLATE.getFeature());
+    private static final int[] PREVIEW_SCALES = {8, 4}; // Of the previews sent ahead of a chunked bitmap, in order.
+
     private final Socket socket;
+    private final ThreadFactory threads;
     private final WhiteboardManager manager;
     private boolean connected = true; // The connection dies when this becomes false.
     protected String username = null;
-    private Whiteboard whiteboard;
-    private PrintWriter out = null;
+    private volatile Whiteboard whiteboard;
+    private Transport transport = null;
+    private volatile boolean binary = false; // Whether the client negotiated binary framing.
+    private volatile SnapshotEncoding snapshotEncoding = SnapshotEncoding.RAW; // How the client wants bitmaps sent.
+    private volatile boolean resumable = false; // Whether the client tracks board versions to resume from.
+    private volatile boolean blankMarker = false; // Whether blank boards may be sent as SnapshotEncoding.BLANK.
+    private volatile boolean chunked = false; // Whether large bitmaps may be sent in CHUNK messages.
+    private volatile boolean progressive = false; // Whether chunked bitmaps are preceded by downsampled previews.
+    // Subscribing and deciding whether to send a lobby event are serialised, so no event sees half a subscription.
+    private final ReentrantLock lobbyLock = new ReentrantLock();
+    private boolean subscribed = false; // Whether the client receives lobby events. Guarded by lobbyLock.
+    private long listedGeneration = -1; // Of the board list in the client's HELLO reply. Guarded by lobbyLock.
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private List<Message> held = null; // Messages waiting for holds to be released. Guarded by sendLock.
+    private List<Hold> holds = null; // Outstanding and released holds, in the order taken. Guarded by sendLock.
+    private boolean replacing = false; // Whether a released hold replaces what is queued. Guarded by sendLock.
+    private Hold replyHold = null; // Taken by handleHello() for its reply. Only used on the reading thread.
+    // FEATURES and the HELLO reply, as queued. A resync never discards them, or the client could not read the rest.
+    private volatile List<Message> greeting = Collections.emptyList();
+
+    /**
+     * One hold() on the client's messages: where its own messages go among those held back, once release() has been
+     * given them.
+     */
+    private static class Hold {
+        final int mark; // How many held messages were sent before it was taken.
+        List<Message> messages = null; // Null until released.
+
+        Hold(int mark) {
+            this.mark = mark;
+        }
+    }
 
     public Client(WhiteboardManager manager, Socket socket) {
+        this(manager, socket, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable);
+            }
+        });
+    }
+
+    /**
+     * Creates a client that will read from its socket in run().
+     * @param manager The server's whiteboard manager
+     * @param socket The client's connection
+     * @param threads Supplies the thread that writes outgoing messages.
+     */
+    public Client(WhiteboardManager manager, Socket socket, ThreadFactory threads) {
         this.socket = socket;
+        this.threads = threads;
+        this.manager = manager;
+    }
+
+    /**
+     * Creates a client whose connection is driven externally rather than by run().
+     * @param manager The server's whiteboard manager
+     * @param transport Where outgoing messages are written.
+     */
+    public Client(WhiteboardManager manager, Transport transport) {
+        this.socket = null;
+        this.threads = null;
         this.manager = manager;
+        this.transport = transport;
     }
 
     @Override
     public void run() {
-        BufferedReader in = null;
         try {
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
-            for (String line = in.readLine(); line != null; line = in.readLine()) {
-                String output = null;
-                try {
-                    output = handleMessage(line);
-                } catch(ClientException e) {
-                    out.println("ERROR " + e.getMessage());
-                }
-                if (output != null) {
-                    sendMessage(output);
-                }
-                if(!connected) {
+            InputStream in = socket.getInputStream();
+            transport = new StreamTransport(socket, manager.getOptions().getQueueCapacity(), threads);
+            MessageDecoder decoder = new MessageDecoder(Protocol.MAX_CLIENT_FRAME_LENGTH);
+            byte[] bytes = new byte[READ_BUFFER_SIZE];
+            while(connected) {
+                int read = in.read(bytes);
+                if(read < 0) {
                     break;
                 }
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, read);
+                while(connected && decoder.next(buffer, this)) {
+                    decoder.setBinary(binary);
+                }
             }
         } catch(IOException e) {
             
         } finally {
-            manager.removeClient(this);
-            if(whiteboard != null){
-                whiteboard.removeUser(this);
-            }
-            if(out != null) out.close();
-            if(in != null) {
+            disconnected();
+            // The transport closes the socket once everything queued (e.g. GOODBYE) has been written.
+            if(transport != null) {
+                transport.close();
+            } else {
                 try {
-                    in.close();
+                    socket.close();
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
-            try {
-                socket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        }
+    }
+
+    /**
+     * Handles a single line received from the client and sends any response.
+     * @param line The line received, without its terminator.
+     */
+    @Override
+    public void lineReceived(String line) {
+        String output = null;
+        try {
+            output = handleMessage(line);
+        } catch(ClientException e) {
+            sendMessage("ERROR " + e.getMessage());
+        }
+        if(output != null && replyHold != null) {
+            // Ahead of anything held back while the reply was prepared (see handleHello()).
+            Hold hold = replyHold;
+            replyHold = null;
+            Message reply = new Message(output);
+            List<Message> sent = new ArrayList<>(greeting);
+            sent.add(binary ? reply.toBinary() : reply);
+            greeting = sent;
+            release(hold, Collections.singletonList(reply), false);
+        } else if(output != null) {
+            sendMessage(output);
+        }
+    }
+
+    /**
+     * Handles a binary DRAW frame received from the client.
+     * @param draw The decoded DRAW.
+     */
+    @Override
+    public void drawReceived(DrawCommand draw) {
+        try {
+            draw(Integer.toString(draw.sequence), draw.colour, draw.strokeWidth, draw.segments);
+        } catch(ClientException e) {
+            sendMessage("ERROR " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return False once the client has asked to disconnect.
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @return True if the client negotiated binary framing; its input is then binary from the next message on.
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Removes the client from the server's state once its connection has gone away.
+     */
+    public void disconnected() {
+        manager.removeClient(this);
+        if(whiteboard != null){
+            whiteboard.removeUser(this);
         }
     }
 
@@ -75,11 +210,165 @@ public class Client extends Thread implements Comparable<Client> {
      * @param message The message to send.
      */
     public void sendMessage(String message) {
-        synchronized(out) {
-            out.println(message);
+        send(new Message(message));
+    }
+
+    /**
+     * Sends an already encoded message to the client. Broadcasts use this so that one encoding is shared by every
+     * recipient.
+     * @param message The message to send.
+     */
+    public void send(Message message) {
+        boolean accepted;
+        sendLock.lock();
+        try {
+            if(held != null) {
+                held.add(message);
+                return;
+            }
+            accepted = transport.write(binary ? message.toBinary() : message);
+        } finally {
+            sendLock.unlock();
+        }
+        // Outside sendLock, since resynchronising takes the board's lock and draws send while holding it.
+        if(!accepted) {
+            overflowed();
+        }
+    }
+
+    /**
+     * Starts holding back messages sent to the client. Holds nest: if one is already outstanding, say a resync when
+     * the client joins another board, the messages held so far are kept, and nothing is sent until every hold has
+     * been released. Each hold's own messages then go out where it was taken, so they stay in order with the rest.
+     * @return The hold, to pass to release().
+     */
+    private Hold hold() {
+        sendLock.lock();
+        try {
+            if(held == null) {
+                held = new ArrayList<>();
+                holds = new ArrayList<>();
+                replacing = false;
+            }
+            Hold hold = new Hold(held.size());
+            holds.add(hold);
+            return hold;
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Releases a hold. Once every hold is released, sends everything held back, with each hold's messages ahead of
+     * those sent after it was taken, and stops holding messages back.
+     * @param hold As returned by hold().
+     * @param messages The hold's own messages, such as a snapshot.
+     * @param replace Whether to discard everything already queued for the client first.
+     */
+    private void release(Hold hold, List<Message> messages, boolean replace) {
+        boolean accepted = true;
+        sendLock.lock();
+        try {
+            hold.messages = messages;
+            replacing |= replace;
+            for(Hold outstanding : holds) {
+                if(outstanding.messages == null) {
+                    return; // Its release sends everything.
+                }
+            }
+            List<Message> ordered = new ArrayList<>(held.size() + messages.size());
+            int from = 0;
+            for(Hold released : holds) {
+                ordered.addAll(held.subList(from, released.mark));
+                ordered.addAll(released.messages);
+                from = released.mark;
+            }
+            ordered.addAll(held.subList(from, held.size()));
+            held = null;
+            holds = null;
+            if(replacing) {
+                List<Message> formatted = new ArrayList<>(ordered.size());
+                for(Message message : ordered) {
+                    formatted.add(binary ? message.toBinary() : message);
+                }
+                transport.replaceQueued(formatted, greeting);
+                return;
+            }
+            for(Message message : ordered) {
+                accepted = transport.write(binary ? message.toBinary() : message);
+                if(!accepted) {
+                    break;
+                }
+            }
+        } finally {
+            sendLock.unlock();
+        }
+        if(!accepted) {
+            overflowed();
         }
     }
 
+    /**
+     * Called when the client has fallen so far behind that its outbound queue is full.
+     */
+    private void overflowed() {
+        if(manager.getOptions().getOverflowPolicy() == ServerOptions.OverflowPolicy.DISCONNECT) {
+            transport.abort();
+            return;
+        }
+        // Everything waiting, bar the client's greeting, is replaced by a fresh copy of the current whiteboard, or of
+        // the board list if it is not on one. Lobby notifications (CREATED) dropped by a client on a board are not
+        // recovered.
+        Whiteboard board = whiteboard;
+        if(board == null) {
+            resyncLobby();
+            return;
+        }
+        // Holding the board's lock ensures every DRAW after the snapshot is held back to follow it. The snapshot is
+        // encoded outside the lock, as when joining, since this usually runs on the board's writer.
+        Whiteboard.Snapshot snapshot;
+        String[] users;
+        Hold hold;
+        board.getLock().lock();
+        try {
+            snapshot = board.getSnapshot();
+            users = board.getUserNames();
+            hold = hold();
+        } finally {
+            board.getLock().unlock();
+        }
+        List<Message> messages = Collections.emptyList();
+        try {
+            // If the client has moved on meanwhile, the board it moved to sends its own state, after this hold's.
+            if(whiteboard == board) {
+                messages = snapshotMessages(board.getName(), snapshot, users);
+            }
+        } finally {
+            release(hold, messages, true);
+        }
+    }
+
+    /**
+     * Replaces everything waiting, bar the client's greeting, with the current board list in a fresh HELLO reply,
+     * which covers any CREATED dropped. As in handleHello(), the list is taken together with the generation of
+     * later CREATEDs to send, and messages are held back so that those follow it.
+     */
+    private void resyncLobby() {
+        Hold hold = hold();
+        List<Message> messages = new ArrayList<>();
+        lobbyLock.lock();
+        try {
+            if(subscribed) {
+                WhiteboardManager.BoardList boards = manager.getBoardList();
+                listedGeneration = boards.generation;
+                messages.add(new Message("HELLO " + strJoin(boards.names)));
+            }
+        } finally {
+            lobbyLock.unlock();
+        }
+        release(hold, messages, true);
+    }
+
     /**
      * Handles a message from the client.
      * (Public for testing purposes. Do not actually use.)
@@ -122,7 +411,12 @@ public class Client extends Thread implements Comparable<Client> {
 
     /**
      * Handles a HELLO message from the client. Such messages may only be received once.
-     * @param args The client's username.
+     * Any optional features the client lists after its username are negotiated here: those the server supports are
+     * confirmed in a FEATURES message sent before the reply, and take effect immediately after it.
+     * The reply lists the available whiteboards. The list is taken and the client subscribed to lobby events in one
+     * step, so each new whiteboard is either in the list or announced by CREATED, never both or neither. Messages are
+     * held back until the reply is sent so that it goes out ahead of any CREATED.
+     * @param args The client's username, then any optional features it supports.
      * @return A message indicating the available whiteboards.
      * @throws ClientException
      */
@@ -135,7 +429,50 @@ public class Client extends Thread implements Comparable<Client> {
         }
         username = args[0];
         manager.addClient(this);
-        return "HELLO " + strJoin(manager.getWhiteboardNames());
+        List<String> features = new ArrayList<>();
+        for(int i = 1; i < args.length; i++) {
+            String feature = args[i].toLowerCase();
+            if(SUPPORTED_FEATURES.contains(feature) && !features.contains(feature)) {
+                features.add(feature);
+            }
+        }
+        if(!features.isEmpty()) {
+            Message confirmation = new Message("FEATURES " + strJoin(features.toArray(new String[features.size()])));
+            greeting = Collections.singletonList(confirmation); // Sent as text: binary framing starts after it.
+            send(confirmation);
+            binary = features.contains(Protocol.FEATURE_BINARY);
+            resumable = features.contains(Protocol.FEATURE_RESUME);
+            blankMarker = features.contains(Protocol.FEATURE_BLANK);
+            chunked = features.contains(Protocol.FEATURE_CHUNKED);
+            progressive = features.contains(Protocol.FEATURE_PROGRESSIVE);
+            if(features.contains(SnapshotEncoding.DEFLATE.getFeature())) {
+                snapshotEncoding = SnapshotEncoding.DEFLATE;
+            }
+        }
+        replyHold = hold();
+        WhiteboardManager.BoardList boards;
+        lobbyLock.lock();
+        try {
+            boards = manager.getBoardList();
+            listedGeneration = boards.generation;
+            subscribed = true;
+        } finally {
+            lobbyLock.unlock();
+        }
+        return "HELLO " + strJoin(boards.names);
+    }
+
+    /**
+     * @param generation The generation of the first board list that includes a new whiteboard.
+     * @return Whether the client should be sent CREATED for it: it has said HELLO, and its reply did not list it.
+     */
+    boolean wantsBoardEvent(long generation) {
+        lobbyLock.lock();
+        try {
+            return subscribed && listedGeneration < generation;
+        } finally {
+            lobbyLock.unlock();
+        }
     }
 
     /**
@@ -149,9 +486,10 @@ public class Client extends Thread implements Comparable<Client> {
     }
 
     /**
-     * Handles a JOIN message from the client.
-     * @param args One entry: The name of the whiteboard the client wishes to join
-     * @return The whiteboard's name, bitmap, and membership.
+     * Handles a JOIN message from the client. The reply (see enter()) is sent directly rather than returned.
+     * @param args The name of the whiteboard the client wishes to join, then optionally the last version of it the
+     *             client saw, if it is resuming after a reconnect.
+     * @return null
      * @throws ClientException
      */
     private String handleJoin(String args[]) throws ClientException {
@@ -160,23 +498,26 @@ public class Client extends Thread implements Comparable<Client> {
             throw new ClientException("Must provide whiteboard to join.");
         }
         String whiteboardName = args[0];
-        synchronized(manager) {
-            if(!manager.hasWhiteboard(whiteboardName)) {
-                throw new ClientException("No such whiteboard.");
-            }
-            if(whiteboard != null) {
-                whiteboard.removeUser(this);
+        long seen = -1;
+        if(args.length > 1 && resumable) {
+            try {
+                seen = Long.parseLong(args[1]);
+            } catch(NumberFormatException e) {
+                throw new ClientException("Malformed version: " + args[1]);
             }
-            whiteboard = manager.getWhiteboard(whiteboardName);
-            whiteboard.addUser(this);
-            return "WHITEBOARD " + whiteboard.getName() + " " + whiteboard.getSerializedImage() + " " + strJoin(whiteboard.getUserNames());
         }
+        Whiteboard board = manager.getWhiteboard(whiteboardName);
+        if(board == null) {
+            throw new ClientException("No such whiteboard.");
+        }
+        welcome(enter(board, seen));
+        return null;
     }
 
     /**
-     * Handles a CREATE message from the client.
+     * Handles a CREATE message from the client. The reply (see enter()) is sent directly rather than returned.
      * @param args One entry: the name of a whiteboard to create
-     * @return The whiteboard's name, bitmap, and membership.
+     * @return null
      * @throws ClientException
      */
     private String handleCreate(String args[]) throws ClientException {
@@ -184,21 +525,78 @@ public class Client extends Thread implements Comparable<Client> {
         if(args.length < 1) {
             throw new ClientException("Must specify a whiteboard name.");
         }
-        synchronized(manager) {
-            Whiteboard oldWhiteboard = whiteboard;
-            whiteboard = manager.createWhiteboard(args[0]);
-            if(oldWhiteboard != null) {
-                oldWhiteboard.removeUser(this);
+        welcome(enter(manager.createWhiteboard(args[0], this), -1));
+        return null;
+    }
+
+    /**
+     * What a client joining a whiteboard needs to be sent: either a snapshot or the draws it missed.
+     */
+    private static class Entry {
+        String name;
+        String[] users;
+        Whiteboard.Snapshot snapshot; // Null when resuming.
+        long resumedFrom;
+        List<Message> missed; // Null unless resuming.
+        Hold hold;
+    }
+
+    /**
+     * Moves the client onto a whiteboard, parting its current one, and starts holding back messages until welcome()
+     * has sent it the board's state.
+     * @param board The whiteboard to join.
+     * @param seen The last version of the board the client saw, or -1 if it needs a snapshot.
+     * @return What to send the client.
+     */
+    private Entry enter(Whiteboard board, long seen) {
+        if(whiteboard != null) {
+            whiteboard.removeUser(this);
+        }
+        whiteboard = board;
+        Entry entry = new Entry();
+        entry.name = board.getName();
+        board.getLock().lock();
+        try {
+            entry.missed = seen >= 0 ? board.getHistorySince(seen) : null;
+            entry.resumedFrom = seen;
+            if(entry.missed == null) {
+                entry.snapshot = board.getSnapshot();
             }
-            whiteboard.addUser(this);
+            entry.hold = hold();
+            board.addUser(this);
+            entry.users = board.getUserNames();
+        } finally {
+            board.getLock().unlock();
+        }
+        return entry;
+    }
+
+    /**
+     * Sends a joining client the state of its new whiteboard, followed by anything sent to it in the meantime. A
+     * snapshot is encoded through the transport's offload(), so that it never holds up an event loop, and the
+     * client's next message is not handled until it has been sent.
+     * @param entry As returned by enter().
+     */
+    private void welcome(final Entry entry) {
+        if(entry.missed == null) {
+            transport.offload(new Runnable() {
+                @Override
+                public void run() {
+                    release(entry.hold, snapshotMessages(entry.name, entry.snapshot, entry.users), false);
+                }
+            });
+            return;
         }
-        return "WHITEBOARD " + whiteboard.getName() + " " + whiteboard.getSerializedImage() + " " + strJoin(whiteboard.getUserNames());
+        List<Message> messages = new ArrayList<>();
+        messages.add(new Message("RESUME " + entry.name + " " + entry.resumedFrom + " " + strJoin(entry.users)));
+        messages.addAll(entry.missed);
+        release(entry.hold, messages, false);
     }
 
     /**
      * Handles a DRAW message from the client.
      * @param args DRAW arguments; see protocol spec.
-     * @return ACK containing the sequence number indicated in the client's message.
+     * @return null; the ACK is sent once the draw has been applied.
      * @throws ClientException
      */
     private String handleDraw(String[] args) throws ClientException {
@@ -209,13 +607,89 @@ public class Client extends Thread implements Comparable<Client> {
             throw new ClientException("Must specify a set of start/end coordinate pairs");
         }
         List<LineSegment> segments = new ArrayList<>();
-        for(int i = 3; i < args.length; i += 4) {
-            segments.add(new LineSegment(Integer.parseInt(args[i]), Integer.parseInt(args[i+1]), Integer.parseInt(args[i+2]), Integer.parseInt(args[i+3])));
+        Color colour;
+        float strokeSize;
+        try {
+            for(int i = 3; i < args.length; i += 4) {
+                segments.add(new LineSegment(Integer.parseInt(args[i]), Integer.parseInt(args[i+1]), Integer.parseInt(args[i+2]), Integer.parseInt(args[i+3])));
+            }
+            colour = Color.decode(args[1]);
+            strokeSize = Float.parseFloat(args[2]);
+        } catch(NumberFormatException e) {
+            throw new ClientException("Malformed DRAW: " + e.getMessage());
+        }
+        draw(args[0], colour, strokeSize, segments);
+        return null;
+    }
+
+    /**
+     * Submits a draw to the client's current whiteboard. The ACK is sent once the draw has been applied and its DRAW
+     * sent to everyone on the board, this client included, and, if the server persists boards, once it is on disk.
+     * So by the time a client sees the ACK it has already been sent the draw itself.
+     * @param sequence The client's sequence number for the operation.
+     * @param colour The colour to draw in
+     * @param strokeSize The width of the stroke in pixels
+     * @param segments The sequence of lines to draw.
+     * @throws ClientException
+     */
+    private void draw(String sequence, Color colour, float strokeSize, List<LineSegment> segments) throws ClientException {
+        Whiteboard board = whiteboard;
+        if(board == null) {
+            throw new ClientException("Must join a whiteboard before drawing.");
+        }
+        final String ack = "ACK " + sequence;
+        board.submit(colour, strokeSize, segments, new Runnable() {
+            @Override
+            public void run() {
+                sendMessage(ack);
+            }
+        });
+    }
+
+    /**
+     * Builds the messages describing a whiteboard in full, with the bitmap in the client's chosen encoding: a
+     * WHITEBOARD message, preceded by its version if the client can resume, and followed by the bitmap in CHUNKs if
+     * the client accepts them and it is too large for one, each level of it in turn if the client wants previews.
+     * Since these are queued together, any DRAW sent afterwards follows the last CHUNK.
+     * @param name The whiteboard's name
+     * @param snapshot The whiteboard's bitmap
+     * @param users The whiteboard's membership
+     * @return The messages to send.
+     */
+    private List<Message> snapshotMessages(String name, Whiteboard.Snapshot snapshot, String[] users) {
+        List<Message> messages = new ArrayList<>();
+        if(resumable) {
+            messages.add(new Message("SYNC " + snapshot.getVersion()));
+        }
+        String bitmap = blankMarker && snapshot.isBlank() ? SnapshotEncoding.BLANK : snapshot.encode(snapshotEncoding);
+        int chunkSize = manager.getOptions().getChunkSize();
+        if(!chunked || bitmap.length() <= chunkSize) {
+            messages.add(new Message("WHITEBOARD " + name + " " + bitmap + " " + strJoin(users)));
+            return messages;
+        }
+        messages.add(new Message("WHITEBOARD " + name + " " + SnapshotEncoding.CHUNKED + " " + strJoin(users)));
+        if(progressive) {
+            for(int scale : PREVIEW_SCALES) {
+                messages.add(new Message("LEVEL " + scale));
+                addChunks(messages, snapshot.encode(snapshotEncoding, scale), chunkSize);
+            }
+            messages.add(new Message("LEVEL 1"));
+        }
+        addChunks(messages, bitmap, chunkSize);
+        return messages;
+    }
+
+    /**
+     * Adds CHUNK messages carrying an encoded bitmap.
+     * @param messages The messages to add to.
+     * @param bitmap The encoded bitmap.
+     * @param chunkSize The most characters of it to put in each CHUNK.
+     */
+    private static void addChunks(List<Message> messages, String bitmap, int chunkSize) {
+        List<String> pieces = SnapshotEncoding.split(bitmap, chunkSize);
+        for(int i = 0; i < pieces.size(); i++) {
+            messages.add(new Message("CHUNK " + (pieces.size() - 1 - i) + " " + pieces.get(i)));
         }
-        Color colour = Color.decode(args[1]);
-        float strokeSize = Float.parseFloat(args[2]);
-        whiteboard.draw(colour, strokeSize, segments);
-        return "ACK " + args[0];
     }
 
     /**
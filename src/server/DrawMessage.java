@@ -0,0 +1,34 @@
+package server;
+
+import shared.LineSegment;
+import shared.Protocol;
+
+import java.awt.Color;
+import java.util.List;
+
+/**
+ * A DRAW broadcast. Its binary form uses the compact DRAW frame rather than wrapping the text line.
+ * Immutable.
+ */
+public class DrawMessage extends Message {
+    private final Color colour;
+    private final float strokeWidth;
+    private final List<LineSegment> segments;
+
+    /**
+     * @param colour The colour of the line
+     * @param strokeWidth The width of the line, in pixels
+     * @param segments The segments drawn. Must not be modified afterwards.
+     */
+    public DrawMessage(Color colour, float strokeWidth, List<LineSegment> segments) {
+        super(Protocol.formatDraw(colour, strokeWidth, segments));
+        this.colour = colour;
+        this.strokeWidth = strokeWidth;
+        this.segments = segments;
+    }
+
+    @Override
+    protected byte[] encodeBinary() {
+        return Protocol.drawFrame(0, colour, strokeWidth, segments);
+    }
+}
@@ -0,0 +1,143 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread servicing many non-blocking client connections.
+ * Thread safety:
+ *   - The selector and all channel I/O are only touched by the loop's own thread.
+ *   - Other threads hand over work through concurrent queues and wake the selector.
+ */
+public class EventLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 16384;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final WhiteboardManager manager;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+    private final Queue<ChannelTransport> pendingFlushes = new ConcurrentLinkedQueue<>();
+    private final Queue<ChannelTransport> pendingResumes = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates and starts an event loop.
+     * @param manager The server's whiteboard manager.
+     * @param name Name for the loop's thread.
+     * @throws IOException If a selector could not be opened.
+     */
+    public EventLoop(WhiteboardManager manager, String name) throws IOException {
+        this.manager = manager;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        thread.start();
+    }
+
+    /**
+     * Hands a newly accepted connection to this loop. May be called from any thread.
+     * @param channel The accepted connection.
+     */
+    public void register(SocketChannel channel) {
+        pendingChannels.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to flush a transport's output queue. May be called from any thread.
+     * @param transport The transport with pending output.
+     */
+    void requestFlush(ChannelTransport transport) {
+        pendingFlushes.add(transport);
+        selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to resume reading a transport's input once an offloaded task has finished. May be called from any
+     * thread.
+     * @param transport The transport to resume.
+     */
+    void requestResume(ChannelTransport transport) {
+        pendingResumes.add(transport);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        //noinspection InfiniteLoopStatement
+        while(true) {
+            try {
+                selector.select();
+            } catch(IOException e) {
+                e.printStackTrace();
+                continue;
+            }
+            registerPendingChannels();
+            ChannelTransport flushing;
+            while((flushing = pendingFlushes.poll()) != null) {
+                try {
+                    flushing.flush();
+                } catch(RuntimeException e) {
+                    e.printStackTrace();
+                    flushing.shutdown();
+                }
+            }
+            ChannelTransport resuming;
+            while((resuming = pendingResumes.poll()) != null) {
+                try {
+                    resuming.resume();
+                } catch(RuntimeException e) {
+                    e.printStackTrace();
+                    resuming.shutdown();
+                }
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while(keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                ChannelTransport transport = (ChannelTransport)key.attachment();
+                try {
+                    if(key.isValid() && key.isWritable()) {
+                        transport.flush();
+                    }
+                    if(key.isValid() && key.isReadable()) {
+                        transport.read(readBuffer);
+                    }
+                } catch(RuntimeException e) {
+                    // One misbehaving connection must not take the whole loop down with it.
+                    e.printStackTrace();
+                    transport.shutdown();
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers connections handed over by the acceptor with the selector.
+     */
+    private void registerPendingChannels() {
+        SocketChannel channel;
+        while((channel = pendingChannels.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                ChannelTransport transport = new ChannelTransport(manager, channel, this);
+                transport.attach(channel.register(selector, SelectionKey.OP_READ, transport));
+            } catch(ClosedChannelException e) {
+                // The client went away before we got to it.
+            } catch(IOException e) {
+                e.printStackTrace();
+                try {
+                    channel.close();
+                } catch(IOException e1) {
+                    e1.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,485 @@
+package server;
+
+import shared.LineSegment;
+
+import java.awt.Color;
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of every whiteboard created and every draw applied, kept on local disk so that boards survive a
+ * restart.
+ * The log is a directory of segment files, each memory-mapped at a fixed size and filled with records of the form
+ *
+ *   int length, int CRC32 of the payload, payload (type byte, then the operation)
+ *
+ * A zero length marks the unused end of a segment. Appends only copy into the mapping; a committer thread makes them
+ * durable in groups, forcing everything appended since its last pass with a single fsync per segment, and then runs
+ * whatever was waiting on those records. After a crash, replay stops at the first torn or corrupt record, and
+ * appending resumes from there. Segments made redundant by a checkpoint (see Checkpointer) are deleted with
+ * truncateBefore().
+ * Thread safety: appends and commits are coordinated by the journal's lock. It is never held while forcing to disk or
+ * running callbacks.
+ */
+public class Journal implements Closeable {
+    private static final byte CREATE = 1;
+    private static final byte DRAW = 2;
+    private static final int HEADER_SIZE = 8;
+    private static final String SUFFIX = ".log";
+
+    /**
+     * The longest whiteboard name the journal can record, in bytes of UTF-8.
+     */
+    public static final int MAX_NAME_LENGTH = 0xFFFF;
+
+    /**
+     * Receives the operations found when replaying the journal.
+     */
+    public interface Listener {
+        /**
+         * @param name The name of a whiteboard that was created.
+         */
+        void created(String name);
+
+        /**
+         * @param board The name of the whiteboard drawn on
+         * @param version The version of the whiteboard the draw produced
+         * @param colour The colour drawn in
+         * @param strokeSize The width of the stroke in pixels
+         * @param segments The lines drawn.
+         */
+        void drew(String board, long version, Color colour, float strokeSize, List<LineSegment> segments);
+    }
+
+    /**
+     * One mapped file of the log.
+     */
+    private static class Segment {
+        final long number;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+
+        Segment(File directory, long number, int size) throws IOException {
+            this.number = number;
+            RandomAccessFile file = new RandomAccessFile(new File(directory, String.format("%020d", number) + SUFFIX), "rw");
+            channel = file.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, file.length()));
+        }
+    }
+
+    /**
+     * Work to run once a record is durable.
+     */
+    private static class Waiter {
+        final long record;
+        final Runnable action;
+
+        Waiter(long record, Runnable action) {
+            this.record = record;
+            this.action = action;
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pending = lock.newCondition(); // Signalled when there is something to commit.
+    private final Condition committed = lock.newCondition(); // Signalled after every commit.
+    private final List<Segment> sealed = new ArrayList<>(); // Full segments not yet forced.
+    private final List<Waiter> waiters = new ArrayList<>();
+    private Segment current;
+    private long appended = 0; // Records appended, including those replayed.
+    private long durable = 0; // Records known to be on disk.
+    private boolean replayed = false;
+    private boolean closed = false;
+    private Thread committer;
+
+    /**
+     * Opens the journal in the given directory, creating it if necessary. Call replay() before appending.
+     * @param directory Where the segment files live.
+     * @param segmentSize The size of each segment file in bytes.
+     * @throws IOException If the directory cannot be used.
+     */
+    public Journal(File directory, int segmentSize) throws IOException {
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Reads every intact record in the journal, in the order they were appended, and prepares to append after them.
+     * Anything after the first damaged record is discarded.
+     * @param listener Receives the operations.
+     * @throws IOException If the segments cannot be read.
+     */
+    public void replay(Listener listener) throws IOException {
+        File[] files = segmentFiles();
+        Arrays.sort(files);
+        boolean damaged = false;
+        for(File file : files) {
+            long number = segmentNumber(file);
+            if(damaged) {
+                if(!file.delete()) {
+                    throw new IOException("Cannot discard " + file);
+                }
+                continue;
+            }
+            if(current != null) {
+                current.channel.close();
+            }
+            current = new Segment(directory, number, 0);
+            damaged = !replaySegment(current.buffer, listener);
+        }
+        lock.lock();
+        try {
+            if(current == null) {
+                current = new Segment(directory, 0, segmentSize);
+            }
+            durable = appended;
+            replayed = true;
+        } finally {
+            lock.unlock();
+        }
+        committer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                commitLoop();
+            }
+        }, "Journal-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * @return The segment files in the journal's directory.
+     */
+    private File[] segmentFiles() {
+        return directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+    }
+
+    private static long segmentNumber(File file) {
+        return Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+    }
+
+    /**
+     * Replays one segment, leaving its position where the next record should go and clearing anything after it.
+     * @return False if a damaged record was found.
+     */
+    private boolean replaySegment(MappedByteBuffer buffer, Listener listener) {
+        CRC32 crc = new CRC32();
+        while(buffer.remaining() >= HEADER_SIZE) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if(length == 0) {
+                buffer.position(start);
+                return true;
+            }
+            boolean intact = length > 0 && length <= buffer.remaining();
+            if(intact) {
+                byte[] payload = new byte[length];
+                buffer.get(payload);
+                crc.reset();
+                crc.update(payload);
+                intact = (int)crc.getValue() == checksum && apply(ByteBuffer.wrap(payload), listener);
+            }
+            if(!intact) {
+                buffer.position(start);
+                while(buffer.hasRemaining()) {
+                    buffer.put((byte)0);
+                }
+                buffer.position(start);
+                buffer.force();
+                return false;
+            }
+            appended++;
+        }
+        return true;
+    }
+
+    /**
+     * Decodes one record's payload and hands it to the listener.
+     * @return False if the payload is malformed.
+     */
+    private static boolean apply(ByteBuffer payload, Listener listener) {
+        String board;
+        long version;
+        Color colour;
+        float strokeSize;
+        List<LineSegment> segments;
+        try {
+            byte type = payload.get();
+            byte[] name = new byte[payload.getShort() & 0xFFFF];
+            payload.get(name);
+            board = new String(name, StandardCharsets.UTF_8);
+            if(type == CREATE) {
+                listener.created(board);
+                return true;
+            }
+            if(type != DRAW) {
+                return false;
+            }
+            version = payload.getLong();
+            colour = new Color(payload.getInt(), true);
+            strokeSize = payload.getFloat();
+            int count = payload.getInt();
+            if(count < 0 || count > payload.remaining() / 16) {
+                return false;
+            }
+            segments = new ArrayList<>(count);
+            for(int i = 0; i < count; i++) {
+                segments.add(new LineSegment(payload.getInt(), payload.getInt(), payload.getInt(), payload.getInt()));
+            }
+        } catch(BufferUnderflowException e) {
+            return false;
+        }
+        listener.drew(board, version, colour, strokeSize, segments);
+        return true;
+    }
+
+    /**
+     * Appends the creation of a whiteboard.
+     * @param name The whiteboard's name, no longer than MAX_NAME_LENGTH.
+     * @return The record's position, for whenDurable().
+     */
+    public long appendCreate(String name) {
+        byte[] board = encodeName(name);
+        ByteBuffer payload = ByteBuffer.allocate(3 + board.length);
+        payload.put(CREATE).putShort((short)board.length).put(board);
+        return append(payload.array());
+    }
+
+    /**
+     * Appends a draw on a whiteboard. Draws on one whiteboard must be appended in the order they are applied.
+     * @param name The whiteboard's name, no longer than MAX_NAME_LENGTH
+     * @param version The version of the whiteboard the draw produces
+     * @param colour The colour drawn in
+     * @param strokeSize The width of the stroke in pixels
+     * @param segments The lines drawn.
+     * @return The record's position, for whenDurable().
+     */
+    public long appendDraw(String name, long version, Color colour, float strokeSize, List<LineSegment> segments) {
+        byte[] board = encodeName(name);
+        ByteBuffer payload = ByteBuffer.allocate(3 + board.length + 20 + 16 * segments.size());
+        payload.put(DRAW).putShort((short)board.length).put(board);
+        payload.putLong(version).putInt(colour.getRGB()).putFloat(strokeSize).putInt(segments.size());
+        for(LineSegment segment : segments) {
+            payload.putInt(segment.x1).putInt(segment.y1).putInt(segment.x2).putInt(segment.y2);
+        }
+        return append(payload.array());
+    }
+
+    /**
+     * @return A whiteboard's name in UTF-8, checked to fit its two-byte length.
+     */
+    private static byte[] encodeName(String name) {
+        byte[] board = name.getBytes(StandardCharsets.UTF_8);
+        if(board.length > MAX_NAME_LENGTH) {
+            // Recording it would corrupt replay of everything after it.
+            throw new IllegalArgumentException("Whiteboard name too long to journal.");
+        }
+        return board;
+    }
+
+    private long append(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        lock.lock();
+        try {
+            if(!replayed || closed) {
+                throw new IllegalStateException("Journal is not open for appending.");
+            }
+            // Leave room for the zero length that marks the end of the segment.
+            if(current.buffer.remaining() < HEADER_SIZE + payload.length + 4) {
+                sealed.add(current);
+                try {
+                    current = new Segment(directory, current.number + 1, Math.max(segmentSize, HEADER_SIZE + payload.length + 4));
+                } catch(IOException e) {
+                    throw new IllegalStateException("Cannot start a new journal segment.", e);
+                }
+            }
+            current.buffer.putInt(payload.length).putInt((int)crc.getValue()).put(payload);
+            appended++;
+            pending.signal();
+            return appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The directory holding the journal.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return The number of the segment being appended to. Everything in earlier segments was appended before this
+     *         was called.
+     */
+    public long getCurrentSegment() {
+        lock.lock();
+        try {
+            return current.number;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of records appended so far, including those replayed.
+     */
+    public long getAppended() {
+        lock.lock();
+        try {
+            return appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the segments before the given one, once everything in them is covered by a checkpoint.
+     * @param segment The first segment to keep. Never later than the current segment.
+     * @throws IOException If a segment could not be deleted.
+     */
+    public void truncateBefore(long segment) throws IOException {
+        File[] files = segmentFiles();
+        for(File file : files) {
+            long number = segmentNumber(file);
+            if(number < segment && !file.delete()) {
+                throw new IOException("Cannot delete journal segment " + file);
+            }
+        }
+    }
+
+    /**
+     * Runs an action once a record is on disk: immediately if it already is, otherwise on the committer thread.
+     * @param record The record's position, as returned when it was appended.
+     * @param action What to run.
+     */
+    public void whenDurable(long record, Runnable action) {
+        lock.lock();
+        try {
+            if(record > durable) {
+                waiters.add(new Waiter(record, action));
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        action.run();
+    }
+
+    /**
+     * Waits until every record appended so far is on disk.
+     * @throws InterruptedException
+     */
+    public void sync() throws InterruptedException {
+        lock.lock();
+        try {
+            long target = appended;
+            while(durable < target && !closed) {
+                committed.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes whatever has been appended durable, over and over, until closed.
+     */
+    private void commitLoop() {
+        while(true) {
+            long target;
+            List<Segment> dirty = new ArrayList<>();
+            lock.lock();
+            try {
+                while(appended == durable && !closed) {
+                    pending.awaitUninterruptibly();
+                }
+                if(appended == durable) {
+                    return;
+                }
+                target = appended;
+                dirty.addAll(sealed);
+                sealed.clear();
+                dirty.add(current);
+            } finally {
+                lock.unlock();
+            }
+            for(int i = 0; i < dirty.size(); i++) {
+                Segment segment = dirty.get(i);
+                segment.buffer.force();
+                if(i < dirty.size() - 1) { // Sealed, so nothing more will be written to it.
+                    try {
+                        segment.channel.close();
+                    } catch(IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            List<Runnable> ready = new ArrayList<>();
+            lock.lock();
+            try {
+                durable = target;
+                for(Iterator<Waiter> iterator = waiters.iterator(); iterator.hasNext(); ) {
+                    Waiter waiter = iterator.next();
+                    if(waiter.record <= durable) {
+                        ready.add(waiter.action);
+                        iterator.remove();
+                    }
+                }
+                committed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            for(Runnable action : ready) {
+                action.run();
+            }
+        }
+    }
+
+    /**
+     * Commits everything appended so far and stops accepting appends.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            pending.signal();
+        } finally {
+            lock.unlock();
+        }
+        if(committer != null) {
+            try {
+                committer.join();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if(current != null) {
+            current.buffer.force();
+            current.channel.close();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package server;
+
+import shared.DrawCommand;
+import shared.MessageDecoder;
+import shared.Protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A single protocol message, encoded to bytes exactly once per wire format. A message broadcast to many clients is
+ * built once and the same instance is queued for every recipient, each of which writes from its own view of the
+ * shared bytes. The binary-framed form is only built if some recipient negotiated it, and then only once.
+ * Thread safety: immutable apart from the lazily built binary form, which is safe to build more than once.
+ */
+public class Message {
+    private final byte[] bytes;
+    private final boolean binary;
+    private volatile Message binaryForm;
+
+    /**
+     * @param line The message line, without a terminator.
+     */
+    public Message(String line) {
+        this((line + "\n").getBytes(StandardCharsets.UTF_8), false);
+    }
+
+    /**
+     * @param bytes The encoded message.
+     * @param binary True if the bytes are a binary frame rather than a text line.
+     */
+    protected Message(byte[] bytes, boolean binary) {
+        this.bytes = bytes;
+        this.binary = binary;
+        if(binary) {
+            binaryForm = this;
+        }
+    }
+
+    /**
+     * @return This message as a binary frame, for clients that negotiated binary framing.
+     */
+    public Message toBinary() {
+        Message form = binaryForm;
+        if(form == null) {
+            form = new Message(encodeBinary(), true);
+            binaryForm = form;
+        }
+        return form;
+    }
+
+    /**
+     * Builds the binary frame for this message. By default a text frame around the line; subclasses with a compact
+     * encoding override this.
+     * @return The complete frame.
+     */
+    protected byte[] encodeBinary() {
+        return Protocol.textFrame(getText());
+    }
+
+    /**
+     * @return The message line, without its terminator. Decoded again on every call, so only meant for diagnostics
+     *         and tests.
+     */
+    public String getText() {
+        if(!binary) {
+            return new String(bytes, 0, bytes.length - 1, StandardCharsets.UTF_8);
+        }
+        final String[] text = new String[1];
+        MessageDecoder decoder = new MessageDecoder();
+        decoder.setBinary(true);
+        try {
+            decoder.next(ByteBuffer.wrap(bytes), new MessageDecoder.Handler() {
+                @Override
+                public void lineReceived(String line) {
+                    text[0] = line;
+                }
+
+                @Override
+                public void drawReceived(DrawCommand draw) {
+                    text[0] = Protocol.formatDraw(draw.colour, draw.strokeWidth, draw.segments);
+                }
+            });
+        } catch(IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return text[0];
+    }
+
+    /**
+     * @return The encoded size of the message, in bytes, including its terminator or frame header.
+     */
+    public int size() {
+        return bytes.length;
+    }
+
+    /**
+     * @return A new read-only view of the encoded message, positioned at its start. Views share the underlying bytes
+     *         but not their positions, so each recipient can write at its own pace.
+     */
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the encoded message to a stream.
+     * @param out The stream.
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,149 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of messages waiting to be written to one client. Producers never block: a full queue
+ * rejects the message and leaves the overflow policy to the caller.
+ * Thread safety: all operations take the queue's lock, which is never held while doing I/O.
+ */
+public class OutboundQueue {
+    private final int capacity;
+    private final ArrayDeque<Message> queue = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private boolean closed = false;
+
+    /**
+     * @param capacity The maximum number of messages that may be waiting.
+     */
+    public OutboundQueue(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds a message unless the queue is full. Messages offered after close() are silently discarded.
+     * @param message The message.
+     * @return false if the queue was full and the message was not added.
+     */
+    public boolean offer(Message message) {
+        lock.lock();
+        try {
+            if(closed) {
+                return true;
+            }
+            if(queue.size() >= capacity) {
+                return false;
+            }
+            queue.add(message);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Atomically discards everything waiting and queues the given messages instead, regardless of capacity.
+     * @param messages The replacement messages.
+     */
+    public void replace(List<Message> messages) {
+        replace(messages, Collections.<Message>emptyList());
+    }
+
+    /**
+     * Atomically discards everything waiting, other than the given messages to keep, and queues the given messages
+     * after those kept, regardless of capacity.
+     * @param messages The replacement messages.
+     * @param kept The messages to keep if they are still waiting, compared by identity.
+     */
+    public void replace(List<Message> messages, Collection<Message> kept) {
+        lock.lock();
+        try {
+            if(closed) {
+                return;
+            }
+            for(Iterator<Message> waiting = queue.iterator(); waiting.hasNext(); ) {
+                if(!kept.contains(waiting.next())) {
+                    waiting.remove();
+                }
+            }
+            queue.addAll(messages);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The message at the head of the queue without removing it, or null if there is none.
+     */
+    public Message peek() {
+        lock.lock();
+        try {
+            return queue.peek();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The message at the head of the queue, removing it, or null if there is none.
+     */
+    public Message poll() {
+        lock.lock();
+        try {
+            return queue.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a message.
+     * @return The message at the head of the queue, or null once the queue has been closed and emptied.
+     * @throws InterruptedException
+     */
+    public Message take() throws InterruptedException {
+        lock.lock();
+        try {
+            while(queue.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return queue.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting messages. Messages already waiting can still be taken.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards all waiting messages.
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            queue.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package server;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the whiteboards' bitmaps within a memory budget. Boards are tracked in least-recently-used order; when the
+ * tiles they have allocated add up to more than the budget, the least recently used boards that nobody is on are spilled to a
+ * compressed file each (see Whiteboard.writePixels()) and dropped from memory. A spilled board is reloaded
+ * transparently the next time anything needs its bitmap, typically a JOIN. The budget is checked whenever a board is
+ * added or reloaded, or allocates tiles.
+ * Boards with users are never spilled, so the budget can be exceeded while every resident board is in use.
+ * Spill files are scratch space, rewritten on every spill; persistence is the Journal's job.
+ * Thread safety: the LRU order is guarded by the cache's own lock, which is never held while taking a board's lock or
+ * writing a file. Boards are only spilled if their lock can be taken without waiting, so a spill never blocks behind,
+ * or deadlocks with, a thread using the board.
+ */
+public class RasterCache {
+    private final long budget;
+    private File directory; // Created on first spill.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<Whiteboard, Boolean> resident = new LinkedHashMap<>(16, 0.75f, true); // LRU first.
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong spills = new AtomicLong();
+    private final AtomicLong spillNanos = new AtomicLong();
+    private final AtomicLong reloadNanos = new AtomicLong();
+
+    /**
+     * @param budget How many bytes of bitmaps to keep in memory.
+     * @param directory Where to spill bitmaps to, or null for a temporary directory.
+     */
+    public RasterCache(long budget, File directory) {
+        this.budget = budget;
+        this.directory = directory;
+    }
+
+    /**
+     * Starts tracking a whiteboard, which must have its bitmap in memory.
+     * @param board The new whiteboard.
+     */
+    void add(Whiteboard board) {
+        board.setCache(this);
+        lock.lock();
+        try {
+            resident.put(board, Boolean.TRUE);
+        } finally {
+            lock.unlock();
+        }
+        enforce(board);
+    }
+
+    /**
+     * Records a use of a whiteboard whose bitmap was already in memory.
+     */
+    void hit(Whiteboard board) {
+        hits.incrementAndGet();
+        lock.lock();
+        try {
+            resident.get(board); // Moves it to the back of the LRU order.
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that a whiteboard's bitmap was reloaded, then makes room for it.
+     * @param board The whiteboard, still locked by the caller.
+     * @param nanos How long the reload took.
+     */
+    void reloaded(Whiteboard board, long nanos) {
+        misses.incrementAndGet();
+        reloadNanos.addAndGet(nanos);
+        lock.lock();
+        try {
+            resident.put(board, Boolean.TRUE);
+        } finally {
+            lock.unlock();
+        }
+        enforce(board);
+    }
+
+    /**
+     * Makes room after a whiteboard allocated more tiles.
+     * @param board The whiteboard, still locked by the caller.
+     */
+    void grew(Whiteboard board) {
+        enforce(board);
+    }
+
+    /**
+     * Spills least recently used boards until the resident ones fit the budget, or none is left that can be spilled.
+     * @param keep A board that is about to be used, and so is not spilled.
+     */
+    private void enforce(Whiteboard keep) {
+        List<Whiteboard> candidates;
+        lock.lock();
+        try {
+            if(residentBytes() <= budget) {
+                return;
+            }
+            candidates = new ArrayList<>(resident.keySet());
+        } finally {
+            lock.unlock();
+        }
+        for(Whiteboard board : candidates) {
+            if(board == keep || board.getRasterBytes() == 0) { // Spilling a blank board frees nothing.
+                continue;
+            }
+            long start = System.nanoTime();
+            boolean spilled;
+            try {
+                spilled = board.spillIfIdle();
+            } catch(IOException e) {
+                // The board stays in memory; over budget is better than lost.
+                e.printStackTrace();
+                continue;
+            }
+            if(!spilled) {
+                continue;
+            }
+            spills.incrementAndGet();
+            spillNanos.addAndGet(System.nanoTime() - start);
+            lock.lock();
+            try {
+                resident.remove(board);
+                if(residentBytes() <= budget) {
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return The memory held by resident boards' tiles. Must hold the lock.
+     */
+    private long residentBytes() {
+        long bytes = 0;
+        for(Whiteboard board : resident.keySet()) {
+            bytes += board.getRasterBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes a spilled whiteboard's bitmap. Called by the whiteboard with its lock held.
+     */
+    void write(Whiteboard board, byte[] pixels) throws IOException {
+        try(OutputStream out = new BufferedOutputStream(new FileOutputStream(file(board)))) {
+            Whiteboard.writePixels(out, pixels);
+        }
+    }
+
+    /**
+     * Reads back a spilled whiteboard's bitmap. Called by the whiteboard with its lock held.
+     */
+    byte[] read(Whiteboard board) throws IOException {
+        try(InputStream in = new BufferedInputStream(new FileInputStream(file(board)))) {
+            return Whiteboard.readPixels(in);
+        }
+    }
+
+    private synchronized File file(Whiteboard board) throws IOException {
+        if(directory == null) {
+            directory = Files.createTempDirectory("whiteboard-spill").toFile();
+            directory.deleteOnExit();
+        } else if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create spill directory " + directory);
+        }
+        return new File(directory, Checkpointer.safeFileName(board.getName()) + ".spill");
+    }
+
+    /**
+     * @return The number of whiteboards whose bitmaps are in memory.
+     */
+    public int getResident() {
+        lock.lock();
+        try {
+            return resident.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return How many times a bitmap was needed and already in memory.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return How many times a bitmap was needed and had to be reloaded from disk.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return How many times a bitmap was spilled to disk.
+     */
+    public long getSpills() {
+        return spills.get();
+    }
+
+    /**
+     * @return The total time spent spilling bitmaps, in nanoseconds.
+     */
+    public long getSpillNanos() {
+        return spillNanos.get();
+    }
+
+    /**
+     * @return The total time spent reloading bitmaps, in nanoseconds.
+     */
+    public long getReloadNanos() {
+        return reloadNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        long spilled = getSpills();
+        long missed = getMisses();
+        return String.format("%d resident, %d hits, %d misses (%.2f ms per reload), %d spills (%.2f ms per spill)",
+                getResident(), getHits(), missed, missed == 0 ? 0 : getReloadNanos() / 1e6 / missed,
+                spilled, spilled == 0 ? 0 : getSpillNanos() / 1e6 / spilled);
+    }
+}
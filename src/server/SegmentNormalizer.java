@@ -0,0 +1,132 @@
+package server;
+
+import shared.LineSegment;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rewrites the segments of a DRAW into fewer that paint the same pixels, so that less is rasterised, journalled and
+ * sent to every user of a board:
+ *   - segments are clipped to the board, leaving a margin wide enough for the stroke, and dropped if nothing of them
+ *     is left;
+ *   - zero-length segments paint a square dot the width of the stroke. Repeats are dropped, and so are dots that the
+ *     end of another segment already covers: with a one pixel stroke, or where that segment is horizontal or
+ *     vertical, so that its square cap lines up with the dot. The remaining dots are moved to the end, which makes
+ *     no difference to the pixels since every segment of a DRAW is painted in the same opaque colour, and leaves the
+ *     segments around them free to merge;
+ *   - a segment that carries straight on from the previous one, in the same direction, is merged into it.
+ * If nothing at all would be left, the segments are returned unchanged, so that every DRAW still draws something.
+ */
+public final class SegmentNormalizer {
+    private SegmentNormalizer() {
+    }
+
+    /**
+     * @param segments The segments of a DRAW, in order.
+     * @param strokeSize The width of the stroke, in pixels.
+     * @return The normalised segments. May be the list given.
+     */
+    public static List<LineSegment> normalize(List<LineSegment> segments, float strokeSize) {
+        // Square caps reach half the width beyond the ends, further at the corners.
+        int margin = (int)Math.ceil(strokeSize) + 1;
+        List<LineSegment> clipped = new ArrayList<>(segments.size());
+        for(LineSegment segment : segments) {
+            LineSegment inside = clip(segment, -margin, -margin, Whiteboard.WIDTH - 1 + margin,
+                    Whiteboard.HEIGHT - 1 + margin);
+            if(inside != null) {
+                clipped.add(inside);
+            }
+        }
+        Set<Long> covered = new HashSet<>();
+        for(LineSegment segment : clipped) {
+            if(!isPoint(segment) && (strokeSize <= 1 || segment.x1 == segment.x2 || segment.y1 == segment.y2)) {
+                covered.add(point(segment.x1, segment.y1));
+                covered.add(point(segment.x2, segment.y2));
+            }
+        }
+        List<LineSegment> result = new ArrayList<>(clipped.size());
+        Map<Long, LineSegment> dots = new LinkedHashMap<>();
+        for(LineSegment segment : clipped) {
+            if(isPoint(segment)) {
+                long point = point(segment.x1, segment.y1);
+                if(!covered.contains(point)) {
+                    dots.put(point, segment);
+                }
+                continue;
+            }
+            LineSegment previous = result.isEmpty() ? null : result.get(result.size() - 1);
+            if(previous != null && continues(previous, segment)) {
+                result.set(result.size() - 1, new LineSegment(previous.x1, previous.y1, segment.x2, segment.y2));
+            } else {
+                result.add(segment);
+            }
+        }
+        result.addAll(dots.values());
+        return result.isEmpty() ? segments : result;
+    }
+
+    private static long point(int x, int y) {
+        return ((long)x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    private static boolean isPoint(LineSegment segment) {
+        return segment.x1 == segment.x2 && segment.y1 == segment.y2;
+    }
+
+    /**
+     * @return Whether next starts where previous ends and heads exactly the same way, so the two make one line.
+     */
+    private static boolean continues(LineSegment previous, LineSegment next) {
+        if(isPoint(previous) || previous.x2 != next.x1 || previous.y2 != next.y1) {
+            return false;
+        }
+        long dx1 = previous.x2 - previous.x1;
+        long dy1 = previous.y2 - previous.y1;
+        long dx2 = next.x2 - next.x1;
+        long dy2 = next.y2 - next.y1;
+        return dx1 * dy2 == dy1 * dx2 && dx1 * dx2 + dy1 * dy2 > 0;
+    }
+
+    /**
+     * Clips a segment to a rectangle (Liang-Barsky), rounding the new ends to whole pixels.
+     * @return The part of the segment inside the rectangle, the segment itself if it is wholly inside, or null if it
+     *         misses the rectangle.
+     */
+    private static LineSegment clip(LineSegment segment, int left, int top, int right, int bottom) {
+        if(segment.x1 >= left && segment.x1 <= right && segment.y1 >= top && segment.y1 <= bottom
+                && segment.x2 >= left && segment.x2 <= right && segment.y2 >= top && segment.y2 <= bottom) {
+            return segment;
+        }
+        double dx = (double)segment.x2 - segment.x1;
+        double dy = (double)segment.y2 - segment.y1;
+        double[] p = {-dx, dx, -dy, dy};
+        double[] q = {(double)segment.x1 - left, (double)right - segment.x1, (double)segment.y1 - top,
+                (double)bottom - segment.y1};
+        double enter = 0;
+        double exit = 1;
+        for(int i = 0; i < 4; i++) {
+            if(p[i] == 0) {
+                if(q[i] < 0) {
+                    return null; // Parallel to this edge and outside it.
+                }
+            } else {
+                double t = q[i] / p[i];
+                if(p[i] < 0) {
+                    enter = Math.max(enter, t);
+                } else {
+                    exit = Math.min(exit, t);
+                }
+            }
+        }
+        if(enter > exit) {
+            return null;
+        }
+        return new LineSegment((int)Math.round(segment.x1 + enter * dx), (int)Math.round(segment.y1 + enter * dy),
+                (int)Math.round(segment.x1 + exit * dx), (int)Math.round(segment.y1 + exit * dy));
+    }
+}
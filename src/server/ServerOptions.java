@@ -0,0 +1,239 @@
+package server;
+
+import java.io.File;
+
+/**
+ * Startup settings for the whiteboard server, parsed from the command line.
+ * Arguments take the form --name=value; anything not given keeps its default.
+ */
+public class ServerOptions {
+    /**
+     * How client connections are serviced.
+     */
+    public enum Mode {
+        /** One blocking platform thread per connection. */
+        THREADED,
+        /** One blocking virtual thread per connection. Needs Java 21 or later. */
+        VIRTUAL,
+        /** A small pool of selector threads servicing non-blocking channels. */
+        SELECTOR
+    }
+
+    /**
+     * What happens when a client falls so far behind that its outbound queue fills up.
+     */
+    public enum OverflowPolicy {
+        /** Drop the queued messages and send the client a fresh copy of its whiteboard instead. */
+        RESYNC,
+        /** Disconnect the client. */
+        DISCONNECT
+    }
+
+    private int port = 6005;
+    private Mode mode = Mode.THREADED;
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+    private int queueCapacity = 1024;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.RESYNC;
+    private int historySize = 1024;
+    private File dataDirectory = null;
+    private int segmentSize = 16 * 1024 * 1024;
+    private long checkpointInterval = 60 * 1000;
+    private long checkpointOperations = 10000;
+    private long memoryBudget = 0;
+    private File spillDirectory = null;
+    private boolean normalizing = false;
+    private int chunkSize = 64 * 1024;
+
+    /**
+     * Parses command line arguments.
+     * @param args Arguments of the form --name=value.
+     * @return The parsed options.
+     * @throws IllegalArgumentException If an argument is unknown or malformed.
+     */
+    public static ServerOptions parse(String[] args) {
+        ServerOptions options = new ServerOptions();
+        for(String arg : args) {
+            int equals = arg.indexOf('=');
+            if(!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Malformed argument: " + arg);
+            }
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+            try {
+                switch(name) {
+                case "port":
+                    options.port = Integer.parseInt(value);
+                    break;
+                case "mode":
+                    options.mode = Mode.valueOf(value.toUpperCase());
+                    break;
+                case "loops":
+                    options.eventLoops = Integer.parseInt(value);
+                    break;
+                case "queue":
+                    options.queueCapacity = Integer.parseInt(value);
+                    break;
+                case "overflow":
+                    options.overflowPolicy = OverflowPolicy.valueOf(value.toUpperCase());
+                    break;
+                case "history":
+                    options.historySize = Integer.parseInt(value);
+                    break;
+                case "data":
+                    options.dataDirectory = new File(value);
+                    break;
+                case "segment":
+                    int megabytes = Integer.parseInt(value);
+                    if(megabytes < 1 || megabytes > 1024) {
+                        throw new IllegalArgumentException("Journal segments must be between 1 and 1024 MB.");
+                    }
+                    options.segmentSize = megabytes * 1024 * 1024;
+                    break;
+                case "checkpoint":
+                    options.checkpointInterval = Long.parseLong(value) * 1000;
+                    break;
+                case "checkpoint-ops":
+                    options.checkpointOperations = Long.parseLong(value);
+                    break;
+                case "memory":
+                    options.memoryBudget = Long.parseLong(value) * 1024 * 1024;
+                    break;
+                case "spill":
+                    options.spillDirectory = new File(value);
+                    break;
+                case "normalize":
+                    if(!value.equals("on") && !value.equals("off")) {
+                        throw new IllegalArgumentException("Normalize must be on or off.");
+                    }
+                    options.normalizing = value.equals("on");
+                    break;
+                case "chunk":
+                    int kilobytes = Integer.parseInt(value);
+                    if(kilobytes < 1 || kilobytes > 16 * 1024) {
+                        throw new IllegalArgumentException("Snapshot chunks must be between 1 and 16384 KB.");
+                    }
+                    options.chunkSize = kilobytes * 1024;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + name);
+                }
+            } catch(NumberFormatException e) {
+                throw new IllegalArgumentException("Bad value for " + name + ": " + value);
+            }
+        }
+        if(options.eventLoops < 1) {
+            throw new IllegalArgumentException("Need at least one event loop.");
+        }
+        if(options.queueCapacity < 1) {
+            throw new IllegalArgumentException("Outbound queues must hold at least one message.");
+        }
+        if(options.checkpointInterval < 1000 || options.checkpointOperations < 1) {
+            throw new IllegalArgumentException("Checkpoints need an interval of at least a second and at least one operation.");
+        }
+        if(options.memoryBudget < 0) {
+            throw new IllegalArgumentException("Memory budget cannot be negative.");
+        }
+        if(options.historySize < 0) {
+            throw new IllegalArgumentException("History size cannot be negative.");
+        }
+        return options;
+    }
+
+    /**
+     * @return The port to listen on.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return How connections are serviced.
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return The number of selector threads used in SELECTOR mode.
+     */
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    /**
+     * @return The maximum number of messages that may wait to be written to a single client.
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @return What to do with a client whose outbound queue is full.
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return The number of recent draws each whiteboard keeps for clients resuming after a reconnect.
+     */
+    public int getHistorySize() {
+        return historySize;
+    }
+
+    /**
+     * @return Where boards are persisted, or null if they live only in memory.
+     */
+    public File getDataDirectory() {
+        return dataDirectory;
+    }
+
+    /**
+     * @return The size of each journal segment file, in bytes.
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * @return How often persisted boards are checkpointed, in milliseconds.
+     */
+    public long getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     * @return How many journal records may build up before boards are checkpointed early.
+     */
+    public long getCheckpointOperations() {
+        return checkpointOperations;
+    }
+
+    /**
+     * @return How many bytes of whiteboard bitmaps to keep in memory, or 0 for no limit.
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @return Where idle whiteboards' bitmaps are spilled to, or null for the default.
+     */
+    public File getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * @return Whether draws are normalised (see SegmentNormalizer) before they are applied.
+     */
+    public boolean isNormalizing() {
+        return normalizing;
+    }
+
+    /**
+     * @return The most characters of a snapshot to send in one CHUNK message.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+}
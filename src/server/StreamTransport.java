@@ -0,0 +1,91 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Transport for a blocking socket, as used by thread-per-connection clients. Messages are queued and written by a
+ * dedicated writer thread, which flushes whenever it catches up with the queue.
+ * Thread safety: producers only touch the OutboundQueue; the socket stream is only written by the writer thread.
+ */
+public class StreamTransport implements Transport, Runnable {
+    private final Socket socket;
+    private final OutputStream out;
+    private final OutboundQueue queue;
+
+    /**
+     * Creates the transport and starts its writer.
+     * @param socket The connected socket. Closed by the transport when it is done.
+     * @param capacity The maximum number of messages that may be waiting.
+     * @param threads Supplies the writer thread.
+     * @throws IOException If the socket's output stream is unavailable.
+     */
+    public StreamTransport(Socket socket, int capacity, ThreadFactory threads) throws IOException {
+        this.socket = socket;
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.queue = new OutboundQueue(capacity);
+        threads.newThread(this).start();
+    }
+
+    @Override
+    public boolean write(Message message) {
+        return queue.offer(message);
+    }
+
+    @Override
+    public void replaceQueued(List<Message> messages, Collection<Message> kept) {
+        queue.replace(messages, kept);
+    }
+
+    @Override
+    public void close() {
+        queue.close();
+    }
+
+    @Override
+    public void abort() {
+        queue.close();
+        queue.clear();
+        closeSocket();
+    }
+
+    @Override
+    public void offload(Runnable task) {
+        task.run(); // Already on the client's own thread.
+    }
+
+    @Override
+    public void run() {
+        try {
+            Message message;
+            while((message = queue.take()) != null) {
+                message.writeTo(out);
+                if(queue.peek() == null) {
+                    out.flush();
+                }
+            }
+            out.flush();
+        } catch(IOException | InterruptedException e) {
+            queue.close();
+            queue.clear();
+        } finally {
+            closeSocket();
+        }
+    }
+
+    /**
+     * Closes the socket, which also wakes a reader blocked on it.
+     */
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package server;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Carries a Client's outgoing messages to its connection. Messages are queued and written by the transport's own
+ * writer, so callers never block on a slow socket.
+ * Thread safety: implementations must accept writes from any thread without interleaving messages.
+ */
+public interface Transport {
+    /**
+     * Queues a single message.
+     * @param message The message to send.
+     * @return false if the outbound queue was full and the message was dropped.
+     */
+    public boolean write(Message message);
+
+    /**
+     * Discards any queued messages and queues the given ones in their place, ignoring the queue bound.
+     * @param messages The messages to send.
+     * @param kept Messages not to discard if they are still waiting. They stay ahead of the replacements.
+     */
+    public void replaceQueued(List<Message> messages, Collection<Message> kept);
+
+    /**
+     * Closes the connection once already queued messages have been written. Later writes are silently dropped.
+     */
+    public void close();
+
+    /**
+     * Closes the connection immediately, discarding anything still queued.
+     */
+    public void abort();
+
+    /**
+     * Runs a slow task for the client, such as encoding a snapshot, somewhere it will not hold up other connections,
+     * reading none of the client's further input until it has finished. Called while handling the client's input.
+     * @param task The task.
+     */
+    public void offload(Runnable task);
+}
@@ -0,0 +1,29 @@
+package server;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads on runtimes that have them (Java 21 and later). The project is still compiled for older
+ * language levels, so the Thread.Builder API is reached reflectively.
+ */
+public class VirtualThreads {
+    private VirtualThreads() {
+    }
+
+    /**
+     * Makes a factory producing virtual threads named prefix0, prefix1, ...
+     * @param prefix Thread name prefix.
+     * @return The thread factory.
+     * @throws UnsupportedOperationException If the running JVM does not support virtual threads.
+     */
+    public static ThreadFactory factory(String prefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+        } catch(ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later.", e);
+        }
+    }
+}
@@ -1,36 +1,235 @@
 package server;
 
 import shared.LineSegment;
+import shared.SnapshotEncoding;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.*;
 import java.util.List;
-
-import javax.xml.bind.DatatypeConverter;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Represents a whiteboard, as seen by the server. Tracks its name, a user list and the current state of the canvas.
  * Thread safety: since a whiteboard may be modified concurrently by many threads, locking is used to prevent
- * inconsistencies.
+ * inconsistencies. An explicit lock is used rather than the object monitor because messages are sent to users while
+ * it is held, and a virtual thread blocking on a socket inside a monitor would pin its carrier thread.
+ * Drawing: clients do not draw under the lock themselves. They submit() draws to the board's queue, which a single
+ * writer drains on a shared pool of board threads, so the lock is only contended by that writer and by joins. Each
+ * batch it takes is applied in two stages under one acquisition of the lock: first every draw is journalled and the
+ * batch is rasterised in one pass, then the DRAW messages are recorded in the history and fanned out to the users.
+ * Fan-out stays under the lock because joins and resynchronisations rely on it to order snapshots against DRAWs.
+ * Snapshots: the canvas is stored as fixed-size tiles. Taking a snapshot only copies the array of tile references
+ * under the lock and marks every tile shared; a draw that touches a shared tile copies it first. Snapshots are
+ * therefore immutable and are encoded outside the lock while drawing carries on. Tiles are only allocated once
+ * something is drawn on them; until then they are blank, so a new board costs next to nothing and a board nobody has
+ * drawn on has a blank snapshot that is never encoded more than once per server. Every draw bumps the board's version,
+ * and the snapshot for the current version is reused, so users joining between two strokes share a single encode.
+ * History: the most recent DRAW messages are kept, so that a client resuming after a reconnect can be sent just the
+ * draws it missed rather than a whole snapshot.
+ * Persistence: if the server keeps a Journal, every draw is appended to it under the lock, so the journal holds each
+ * board's draws in version order.
+ * Memory: if the server has a RasterCache, a whiteboard nobody is on may have its tiles spilled to disk to stay within
+ * the server's memory budget. They are reloaded, under the lock, by whatever next needs them.
  */
 public class Whiteboard {
+    public static final int WIDTH = 800;
+    public static final int HEIGHT = 600;
+    static final int TILE_SIZE = 100;
+    private static final int TILES_ACROSS = (WIDTH + TILE_SIZE - 1) / TILE_SIZE;
+    private static final int TILES_DOWN = (HEIGHT + TILE_SIZE - 1) / TILE_SIZE;
+    /** The size of a whiteboard's bitmap in memory, once every tile is allocated. */
+    static final long RASTER_BYTES = WIDTH * HEIGHT * 4L;
+    private static final byte WHITE = (byte)0xFF; // Every byte of a white ABGR pixel.
+    private static final int BATCH_SIZE = 64; // Most draws applied per acquisition of the lock.
+    private static final int MAX_STROKES = 256; // Widths are chosen by clients, so the cache of strokes is bounded.
+    private static final ConcurrentMap<Float, BasicStroke> STROKES = new ConcurrentHashMap<>();
+    private static final Executor WRITERS = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Whiteboard-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     private final String name;
+    private final ReentrantLock lock = new ReentrantLock();
     private Set<Client> users = new TreeSet<>();
-    private BufferedImage image = new BufferedImage(800, 600, BufferedImage.TYPE_4BYTE_ABGR);
-    private Graphics2D graphics;
+    private BufferedImage[] tiles = blankTiles(); // Row-major; null tiles are blank. Null while spilled.
+    private final boolean[] shared = new boolean[tiles.length]; // Whether a snapshot holds the tile.
+    private long version = 0; // Bumped by every draw.
+    private Snapshot snapshot; // Of the current version, or null if none has been taken since the last draw.
+    private final int historySize;
+    private final ArrayDeque<Message> history = new ArrayDeque<>(); // The DRAWs for the most recent versions.
+    private final Journal journal; // Null if the server does not persist boards.
+    private RasterCache cache; // Null if the server has no memory budget.
+    private volatile long rasterBytes = 0; // Held by allocated tiles.
+    private volatile boolean normalizing = false; // Whether draws are passed through SegmentNormalizer.
+    private final AtomicLong segmentsIn = new AtomicLong(); // In the draws given to draw() and submit().
+    private final AtomicLong segmentsOut = new AtomicLong(); // In the draws applied.
+    private final Queue<Operation> operations = new ConcurrentLinkedQueue<>(); // Submitted draws, not yet applied.
+    private final AtomicBoolean scheduled = new AtomicBoolean(); // Whether the writer is queued or running.
+    private final Runnable writer = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
 
     /**
-     * Creates a whiteboard with the given name.
+     * Creates a whiteboard with the given name, remembering the default number of recent draws.
      * @param name Whiteboard name.
      */
     public Whiteboard(String name) {
+        this(name, new ServerOptions().getHistorySize(), null);
+    }
+
+    /**
+     * Creates a whiteboard with the given name.
+     * @param name Whiteboard name.
+     * @param historySize How many recent draws to keep for resuming clients.
+     * @param journal Where to record draws, or null if they are not persisted.
+     */
+    public Whiteboard(String name, int historySize, Journal journal) {
         this.name = name;
+        this.historySize = historySize;
+        this.journal = journal;
         System.out.println(getName());
-        graphics = image.createGraphics();
-        graphics.setColor(Color.WHITE);
-        graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+    }
+
+    private static BufferedImage[] blankTiles() {
+        return new BufferedImage[TILES_ACROSS * TILES_DOWN];
+    }
+
+    /**
+     * @return A newly allocated white tile.
+     */
+    private static BufferedImage blankTile(int index) {
+        BufferedImage tile = new BufferedImage(tileWidth(index), tileHeight(index), BufferedImage.TYPE_4BYTE_ABGR);
+        Arrays.fill(((DataBufferByte)tile.getRaster().getDataBuffer()).getData(), WHITE);
+        return tile;
+    }
+
+    private static long tileBytes(int index) {
+        return tileWidth(index) * tileHeight(index) * 4L;
+    }
+
+    /**
+     * @return The memory held by the whiteboard's tiles, in bytes. Not synchronised, so possibly just out of date.
+     */
+    long getRasterBytes() {
+        return rasterBytes;
+    }
+
+    /**
+     * Sets whether draws are normalised (see SegmentNormalizer) before they are applied.
+     */
+    void setNormalizing(boolean normalizing) {
+        this.normalizing = normalizing;
+    }
+
+    /**
+     * @return How many segments the draws given to the whiteboard had.
+     */
+    public long getSegmentsIn() {
+        return segmentsIn.get();
+    }
+
+    /**
+     * @return How many segments were left to apply, after normalising.
+     */
+    public long getSegmentsOut() {
+        return segmentsOut.get();
+    }
+
+    /**
+     * Normalises a draw's segments, if the whiteboard does so, and counts them. Called before the draw is queued, so
+     * the work is done by the thread that received it rather than the board's writer.
+     */
+    private List<LineSegment> normalize(List<LineSegment> segments, float strokeSize) {
+        segmentsIn.addAndGet(segments.size());
+        if(normalizing) {
+            segments = SegmentNormalizer.normalize(segments, strokeSize);
+        }
+        segmentsOut.addAndGet(segments.size());
+        return segments;
+    }
+
+    /**
+     * Puts the whiteboard's bitmap under the control of a memory budget.
+     * @param cache The server's raster cache.
+     */
+    void setCache(RasterCache cache) {
+        lock.lock();
+        try {
+            this.cache = cache;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes sure the tiles are in memory, reloading them if they were spilled. Must hold the lock.
+     */
+    private void ensureResident() {
+        if(cache == null) {
+            return;
+        }
+        if(tiles != null) {
+            cache.hit(this);
+            return;
+        }
+        long start = System.nanoTime();
+        byte[] pixels;
+        try {
+            pixels = cache.read(this);
+        } catch(IOException e) {
+            throw new IllegalStateException("Cannot reload spilled whiteboard " + name, e);
+        }
+        tiles = blankTiles();
+        Arrays.fill(shared, false);
+        setPixels(pixels);
+        cache.reloaded(this, System.nanoTime() - start);
+    }
+
+    /**
+     * Spills the tiles to disk if nobody is on the whiteboard and nobody else is using it.
+     * @return True if the tiles are no longer in memory.
+     * @throws IOException If they could not be written.
+     */
+    boolean spillIfIdle() throws IOException {
+        // Never spill a board the caller is in the middle of using, and never wait for one.
+        if(lock.isHeldByCurrentThread() || !lock.tryLock()) {
+            return false;
+        }
+        try {
+            if(tiles == null) {
+                return true;
+            }
+            if(!users.isEmpty()) {
+                return false;
+            }
+            cache.write(this, new Snapshot(version, tiles).getPixels());
+            tiles = null;
+            snapshot = null;
+            rasterBytes = 0;
+            return true;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -38,10 +237,165 @@ public class Whiteboard {
      * Suitable for sending to clients.
      * @return The base64-encoded bitmap.
      */
-    public synchronized String getSerializedImage() {
-        DataBufferByte buffer = (DataBufferByte)image.getRaster().getDataBuffer();
-        byte data[] = buffer.getData();
-        return DatatypeConverter.printBase64Binary(data);
+    public String getSerializedImage() {
+        return getSerializedImage(SnapshotEncoding.RAW);
+    }
+
+    /**
+     * Encodes the bitmap that is currently on this whiteboard for sending to clients. The encode happens outside the
+     * whiteboard's lock and is shared with anyone else asking before the next draw.
+     * @param encoding The encoding the recipient asked for.
+     * @return The encoded bitmap.
+     */
+    public String getSerializedImage(SnapshotEncoding encoding) {
+        return getSnapshot().encode(encoding);
+    }
+
+    /**
+     * Captures the current state of the bitmap. Costs O(tiles) under the lock.
+     * @return An immutable view of the bitmap.
+     */
+    Snapshot getSnapshot() {
+        lock.lock();
+        try {
+            ensureResident();
+            if(snapshot == null) {
+                snapshot = new Snapshot(version, tiles.clone());
+                Arrays.fill(shared, true);
+            }
+            return snapshot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the bitmap with one read back from a checkpoint. The whiteboard should have no users.
+     * @param pixels The bitmap, as from Snapshot.getPixels().
+     * @param restoredVersion The version the bitmap was taken at.
+     */
+    void restore(byte[] pixels, long restoredVersion) {
+        lock.lock();
+        try {
+            ensureResident();
+            setPixels(pixels);
+            version = restoredVersion;
+            snapshot = null;
+            history.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Overwrites every tile from a bitmap, leaving white areas unallocated. Must hold the lock, with the tiles in memory.
+     * @param pixels The bitmap, as from Snapshot.getPixels().
+     */
+    private void setPixels(byte[] pixels) {
+        for(int i = 0; i < tiles.length; i++) {
+            int x = i % TILES_ACROSS * TILE_SIZE;
+            int y = i / TILES_ACROSS * TILE_SIZE;
+            int rowBytes = tileWidth(i) * 4;
+            if(isWhite(pixels, x, y, i)) {
+                if(tiles[i] != null) {
+                    rasterBytes -= tileBytes(i);
+                }
+                tiles[i] = null;
+                shared[i] = false;
+                continue;
+            }
+            byte[] data = ((DataBufferByte)writableTile(i).getRaster().getDataBuffer()).getData();
+            for(int row = 0; row < tileHeight(i); row++) {
+                System.arraycopy(pixels, ((y + row) * WIDTH + x) * 4, data, row * rowBytes, rowBytes);
+            }
+        }
+    }
+
+    private static boolean isWhite(byte[] pixels, int x, int y, int index) {
+        for(int row = 0; row < tileHeight(index); row++) {
+            int start = ((y + row) * WIDTH + x) * 4;
+            for(int offset = start; offset < start + tileWidth(index) * 4; offset++) {
+                if(pixels[offset] != WHITE) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes a bitmap compactly, for checkpoints and spilling.
+     * @param out Where to write it; left open.
+     * @param pixels The bitmap, as from Snapshot.getPixels().
+     * @throws IOException
+     */
+    static void writePixels(OutputStream out, byte[] pixels) throws IOException {
+        Deflater compressor = new Deflater(Deflater.BEST_SPEED);
+        try {
+            DeflaterOutputStream deflater = new DeflaterOutputStream(out, compressor);
+            deflater.write(pixels);
+            deflater.finish();
+        } finally {
+            compressor.end();
+        }
+    }
+
+    /**
+     * Reads back a bitmap written by writePixels().
+     * @param in Where to read it from; left open.
+     * @return The bitmap.
+     * @throws IOException
+     */
+    static byte[] readPixels(InputStream in) throws IOException {
+        byte[] pixels = new byte[(int)RASTER_BYTES];
+        InflaterInputStream inflater = new InflaterInputStream(in);
+        int read = 0;
+        while(read < pixels.length) {
+            int count = inflater.read(pixels, read, pixels.length - read);
+            if(count < 0) {
+                throw new IOException("Truncated bitmap.");
+            }
+            read += count;
+        }
+        return pixels;
+    }
+
+    /**
+     * Finds the draws applied since a given version, for a client resuming from it. Must hold the lock.
+     * @param since The last version the client saw.
+     * @return The DRAW messages for every later version, in order, or null if some are no longer remembered.
+     */
+    List<Message> getHistorySince(long since) {
+        long missed = version - since;
+        if(since < 0 || missed < 0 || missed > history.size()) {
+            return null;
+        }
+        List<Message> draws = new ArrayList<>((int)missed);
+        Iterator<Message> iterator = history.descendingIterator();
+        for(long i = 0; i < missed; i++) {
+            draws.add(iterator.next());
+        }
+        Collections.reverse(draws);
+        return draws;
+    }
+
+    /**
+     * @return The version of the bitmap, which increases with every draw.
+     */
+    public long getVersion() {
+        lock.lock();
+        try {
+            return version;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The lock guarding this whiteboard, for callers that need several operations to be atomic.
+     */
+    public Lock getLock() {
+        return lock;
     }
 
     /**
@@ -53,74 +407,471 @@ public class Whiteboard {
 
     /**
      * Draws a line on the whiteboard. This both updates the representation of the whiteboard held in this object
-     * and also transmits the new line to every client (including the client the command was presumably received from)
+     * and also transmits the new line to every client (including the client the command was presumably received from).
+     * The DRAW message is encoded once and shared by all recipients. The draw is applied before this returns, by the
+     * calling thread; clients use submit() instead.
+     * @param colour The colour to draw in
+     * @param strokeSize The width of the stroke in pixels
+     * @param segments The sequence of lines to draw.
+     * @return The draw's position in the journal, or -1 if there is no journal.
+     */
+    public long draw(Color colour, float strokeSize, List<LineSegment> segments) {
+        Operation operation = new Operation(colour, strokeSize, normalize(segments, strokeSize), null);
+        apply(Collections.singletonList(operation), true);
+        if(operation.failure != null) {
+            throw operation.failure;
+        }
+        return operation.position;
+    }
+
+    /**
+     * Reapplies a draw read back from the journal, without recording it again. The whiteboard should have no users.
+     * @param colour The colour to draw in
+     * @param strokeSize The width of the stroke in pixels
+     * @param segments The sequence of lines to draw.
+     */
+    void replay(Color colour, float strokeSize, List<LineSegment> segments) {
+        apply(Collections.singletonList(new Operation(colour, strokeSize, segments, null)), false);
+    }
+
+    /**
+     * Queues a draw for the whiteboard's writer and returns at once. Draws submitted by one thread are applied in the
+     * order submitted, after any it submitted earlier.
      * @param colour The colour to draw in
      * @param strokeSize The width of the stroke in pixels
      * @param segments The sequence of lines to draw.
+     * @param durable Run once the draw has been sent out and, if there is a journal, is on disk; or null. Not run if
+     *                the draw could not be journalled.
+     */
+    public void submit(Color colour, float strokeSize, List<LineSegment> segments, Runnable durable) {
+        operations.add(new Operation(colour, strokeSize, normalize(segments, strokeSize), durable));
+        schedule();
+    }
+
+    /**
+     * Waits until every draw submitted so far has been applied. Must not be called by a whiteboard writer.
+     * @throws InterruptedException
      */
-    public synchronized void draw(Color colour, float strokeSize, List<LineSegment> segments) {
-        StringBuilder message = new StringBuilder();
-        message.append("DRAW ");
-        message.append(colour.getRGB());
-        message.append(" ");
-        message.append(Float.toString(strokeSize));
-        graphics.setColor(colour);
-        graphics.setStroke(new BasicStroke(strokeSize));
-        for(LineSegment segment : segments) {
-            graphics.drawLine(segment.x1, segment.y1, segment.x2, segment.y2);
-            message.append(" ");
-            message.append(segment.x1);
-            message.append(" ");
-            message.append(segment.y1);
-            message.append(" ");
-            message.append(segment.x2);
-            message.append(" ");
-            message.append(segment.y2);
+    public void flush() throws InterruptedException {
+        CountDownLatch applied = new CountDownLatch(1);
+        operations.add(new Operation(applied));
+        schedule();
+        applied.await();
+    }
+
+    private void schedule() {
+        if(scheduled.compareAndSet(false, true)) {
+            WRITERS.execute(writer);
         }
-        String stringMessage = message.toString();
-        for(Client client : users) {
-            client.sendMessage(stringMessage);
+    }
+
+    /**
+     * Applies the next batch of submitted draws, then reschedules the writer if more are waiting. Only ever running
+     * once at a time for each whiteboard.
+     */
+    private void drain() {
+        List<Operation> batch = new ArrayList<>();
+        try {
+            Operation operation;
+            while(batch.size() < BATCH_SIZE && (operation = operations.poll()) != null) {
+                batch.add(operation);
+            }
+            apply(batch, true);
+        } catch(RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            for(Operation operation : batch) {
+                if(operation.failure != null) {
+                    operation.failure.printStackTrace();
+                }
+                // Only a draw whose DRAW has been queued to its users, its author included, is acknowledged, so the
+                // ACK can never overtake the echo, even if the batch failed part way through.
+                if(operation.durable != null && operation.sent && operation.position >= 0) {
+                    journal.whenDurable(operation.position, operation.durable);
+                } else if(operation.durable != null && operation.sent && journal == null) {
+                    operation.durable.run(); // Nothing to wait for once the draw has been sent out.
+                }
+                if(operation.flushed != null) {
+                    operation.flushed.countDown();
+                }
+            }
+            scheduled.set(false);
+            // Rescheduling after a batch, rather than looping, lets other whiteboards' writers have a turn.
+            if(!operations.isEmpty()) {
+                schedule();
+            }
         }
     }
 
+    /**
+     * Applies a batch of draws under one acquisition of the lock: first journalling and rasterising every draw, then
+     * recording and sending their DRAW messages.
+     * @param batch The draws, in order. Each one's position is set if it is journalled.
+     * @param record Whether to record the draws in the journal.
+     */
+    private void apply(List<Operation> batch, boolean record) {
+        lock.lock();
+        try {
+            ensureResident();
+            long allocated = rasterBytes;
+            List<Operation> accepted = new ArrayList<>(batch.size());
+            for(Operation operation : batch) {
+                if(operation.segments == null) {
+                    continue; // A flush marker.
+                }
+                if(record && journal != null) {
+                    try {
+                        operation.position = journal.appendDraw(name, version + accepted.size() + 1,
+                                operation.colour, operation.strokeSize, operation.segments);
+                    } catch(IllegalStateException e) {
+                        // Left undrawn, and so never acknowledged, rather than drawn but lost on restart.
+                        operation.failure = e;
+                        continue;
+                    }
+                }
+                accepted.add(operation);
+            }
+            render(accepted);
+            if(cache != null && rasterBytes > allocated) {
+                cache.grew(this);
+            }
+            if(accepted.isEmpty()) {
+                return;
+            }
+            // The new version and the invalidated snapshot are published once for the whole batch.
+            version += accepted.size();
+            snapshot = null;
+            for(Operation operation : accepted) {
+                Message encoded = new DrawMessage(operation.colour, operation.strokeSize, operation.segments);
+                if(historySize > 0) {
+                    if(history.size() == historySize) {
+                        history.removeFirst();
+                    }
+                    history.addLast(encoded);
+                }
+                for(Client client : users) {
+                    client.send(encoded);
+                }
+                operation.sent = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rasterises draws onto the tiles they touch, in one pass. Each run of consecutive draws in the same colour and
+     * width is drawn through one graphics context per tile it touches, set up once with a shared stroke. The lines are
+     * still drawn one by one rather than as a single path: Java2D rasterises a path's subpaths slightly differently
+     * from separate lines, and the bitmap must match what clients draw from the same DRAWs. Must hold the lock, with
+     * the tiles in memory.
+     * @param draws The draws, in order.
+     */
+    private void render(List<Operation> draws) {
+        Graphics2D[] contexts = new Graphics2D[tiles.length];
+        int start = 0;
+        while(start < draws.size()) {
+            Operation first = draws.get(start);
+            BasicStroke stroke = stroke(first.strokeSize);
+            int margin = (int)Math.ceil(first.strokeSize) + 2; // Covers square caps at any angle.
+            int end = start;
+            for(; end < draws.size() && sameStyle(first, draws.get(end)); end++) {
+                for(LineSegment segment : draws.get(end).segments) {
+                    int left = Math.max(0, (Math.min(segment.x1, segment.x2) - margin) / TILE_SIZE);
+                    int right = Math.min(TILES_ACROSS - 1, (Math.max(segment.x1, segment.x2) + margin) / TILE_SIZE);
+                    int top = Math.max(0, (Math.min(segment.y1, segment.y2) - margin) / TILE_SIZE);
+                    int bottom = Math.min(TILES_DOWN - 1, (Math.max(segment.y1, segment.y2) + margin) / TILE_SIZE);
+                    for(int row = top; row <= bottom; row++) {
+                        for(int column = left; column <= right; column++) {
+                            int index = row * TILES_ACROSS + column;
+                            if(contexts[index] == null) {
+                                contexts[index] = writableTile(index).createGraphics();
+                                contexts[index].translate(-column * TILE_SIZE, -row * TILE_SIZE);
+                                contexts[index].setColor(first.colour);
+                                contexts[index].setStroke(stroke);
+                            }
+                            contexts[index].drawLine(segment.x1, segment.y1, segment.x2, segment.y2);
+                        }
+                    }
+                }
+            }
+            for(int index = 0; index < contexts.length; index++) {
+                if(contexts[index] != null) {
+                    contexts[index].dispose();
+                    contexts[index] = null;
+                }
+            }
+            start = end;
+        }
+    }
+
+    private static boolean sameStyle(Operation first, Operation second) {
+        return first.colour.equals(second.colour) && first.strokeSize == second.strokeSize;
+    }
+
+    /**
+     * @return A stroke of the given width, shared with every other whiteboard drawing at that width.
+     */
+    private static BasicStroke stroke(float width) {
+        BasicStroke stroke = STROKES.get(width);
+        if(stroke == null) {
+            stroke = new BasicStroke(width);
+            if(STROKES.size() < MAX_STROKES) {
+                STROKES.putIfAbsent(width, stroke);
+            }
+        }
+        return stroke;
+    }
+
+    /**
+     * Returns a tile that may be drawn on, allocating it if it is blank or copying it first if a snapshot holds it.
+     * Must hold the lock.
+     * @param index The tile's index.
+     * @return The tile.
+     */
+    private BufferedImage writableTile(int index) {
+        if(tiles[index] == null) {
+            tiles[index] = blankTile(index);
+            shared[index] = false;
+            rasterBytes += tileBytes(index);
+        } else if(shared[index]) {
+            BufferedImage tile = tiles[index];
+            BufferedImage copy = new BufferedImage(tile.getWidth(), tile.getHeight(), BufferedImage.TYPE_4BYTE_ABGR);
+            byte[] from = ((DataBufferByte)tile.getRaster().getDataBuffer()).getData();
+            byte[] to = ((DataBufferByte)copy.getRaster().getDataBuffer()).getData();
+            System.arraycopy(from, 0, to, 0, from.length);
+            tiles[index] = copy;
+            shared[index] = false;
+        }
+        return tiles[index];
+    }
+
+    private static int tileWidth(int index) {
+        return Math.min(TILE_SIZE, WIDTH - index % TILES_ACROSS * TILE_SIZE);
+    }
+
+    private static int tileHeight(int index) {
+        return Math.min(TILE_SIZE, HEIGHT - index / TILES_ACROSS * TILE_SIZE);
+    }
+
     /**
      * Adds a client to the whiteboard, causing them to appear in the user list and receive messages
      * relevant to this whiteboard.
      * @param client The client to add
      */
-    public synchronized void addUser(Client client) {
-        for(Client user : users) {
-            user.sendMessage("JOIN " + client.getUsername());
+    public void addUser(Client client) {
+        lock.lock();
+        try {
+            Message message = new Message("JOIN " + client.getUsername());
+            for(Client user : users) {
+                user.send(message);
+            }
+            users.add(client);
+        } finally {
+            lock.unlock();
         }
-        users.add(client);
     }
 
     /**
      * Removes a client from this whiteboard.
      * @param client The client to remove.
      */
-    public synchronized void removeUser(Client client) {
-        users.remove(client);
-        for(Client user : users) {
-            user.sendMessage("PART " + client.getUsername());
+    public void removeUser(Client client) {
+        lock.lock();
+        try {
+            users.remove(client);
+            Message message = new Message("PART " + client.getUsername());
+            for(Client user : users) {
+                user.send(message);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
      * @return An array of Clients attached to this whiteboard.
      */
-    public synchronized Client[] getUsers() {
-        return users.toArray(new Client[users.size()]);
+    public Client[] getUsers() {
+        lock.lock();
+        try {
+            return users.toArray(new Client[users.size()]);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
      * @return An array of usernames of clients attached to this whiteboard.
      */
-    public synchronized String[] getUserNames() {
-        List<String> list = new LinkedList<>();
-        for(Client user : users) {
-            list.add(user.getUsername());
+    public String[] getUserNames() {
+        lock.lock();
+        try {
+            List<String> list = new LinkedList<>();
+            for(Client user : users) {
+                list.add(user.getUsername());
+            }
+            return list.toArray(new String[list.size()]);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A draw waiting for the whiteboard's writer, or a marker that flush() is waiting for.
+     */
+    private static class Operation {
+        final Color colour;
+        final float strokeSize;
+        final List<LineSegment> segments; // Null for a flush marker.
+        final Runnable durable;
+        final CountDownLatch flushed;
+        long position = -1; // In the journal, once appended.
+        IllegalStateException failure; // Why it could not be journalled, if it could not.
+        boolean sent = false; // Whether its DRAW has been queued to the board's users.
+
+        Operation(Color colour, float strokeSize, List<LineSegment> segments, Runnable durable) {
+            this.colour = colour;
+            this.strokeSize = strokeSize;
+            this.segments = segments;
+            this.durable = durable;
+            this.flushed = null;
+        }
+
+        Operation(CountDownLatch flushed) {
+            this.colour = null;
+            this.strokeSize = 0;
+            this.segments = null;
+            this.durable = null;
+            this.flushed = flushed;
+        }
+    }
+
+    /**
+     * An immutable view of a whiteboard's bitmap at some version. Encodings, full size or downsampled, are computed
+     * on first use and cached.
+     * Thread safety: the tiles are never written once captured; the cache is guarded by an explicit lock so that
+     * concurrent joiners wait for one encode rather than each doing their own, without pinning virtual threads.
+     */
+    static class Snapshot {
+        private static final ReentrantLock blankLock = new ReentrantLock();
+        private static final Map<String, String> blankEncoded = new HashMap<>();
+
+        private final long version;
+        private final BufferedImage[] tiles;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Map<String, String> encoded = new HashMap<>(); // By encoding and scale.
+
+        private Snapshot(long version, BufferedImage[] tiles) {
+            this.version = version;
+            this.tiles = tiles;
+        }
+
+        /**
+         * @return The version of the whiteboard this was taken at.
+         */
+        long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return True if nothing had been drawn on the whiteboard, so every pixel is white.
+         */
+        boolean isBlank() {
+            for(BufferedImage tile : tiles) {
+                if(tile != null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return The raw bitmap, as WIDTH x HEIGHT 4-byte ABGR pixels.
+         */
+        byte[] getPixels() {
+            byte[] pixels = new byte[WIDTH * HEIGHT * 4];
+            Arrays.fill(pixels, WHITE);
+            for(int i = 0; i < tiles.length; i++) {
+                if(tiles[i] == null) {
+                    continue;
+                }
+                byte[] data = ((DataBufferByte)tiles[i].getRaster().getDataBuffer()).getData();
+                int x = i % TILES_ACROSS * TILE_SIZE;
+                int y = i / TILES_ACROSS * TILE_SIZE;
+                int rowBytes = tileWidth(i) * 4;
+                for(int row = 0; row < tileHeight(i); row++) {
+                    System.arraycopy(data, row * rowBytes, pixels, ((y + row) * WIDTH + x) * 4, rowBytes);
+                }
+            }
+            return pixels;
+        }
+
+        /**
+         * @param encoding The encoding the recipient asked for.
+         * @return The bitmap in that encoding.
+         */
+        String encode(SnapshotEncoding encoding) {
+            return encode(encoding, 1);
+        }
+
+        /**
+         * @param encoding The encoding the recipient asked for.
+         * @param scale How many pixels each way every pixel sent stands for; 1 for the full bitmap.
+         * @return The bitmap, downsampled by the scale, in that encoding.
+         */
+        String encode(SnapshotEncoding encoding, int scale) {
+            // Every blank board looks the same, so they share one encode.
+            boolean blank = isBlank();
+            ReentrantLock lock = blank ? blankLock : this.lock;
+            Map<String, String> encoded = blank ? blankEncoded : this.encoded;
+            String key = encoding + "/" + scale;
+            lock.lock();
+            try {
+                String text = encoded.get(key);
+                if(text == null) {
+                    byte[] pixels = getPixels();
+                    text = encoding.encode(scale == 1 ? pixels : downsample(pixels, scale));
+                    encoded.put(key, text);
+                }
+                return text;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Shrinks a bitmap, averaging each square of scale x scale pixels (fewer at the right and bottom edges) into
+         * one.
+         * @param pixels The raw bitmap, as WIDTH x HEIGHT 4-byte ABGR pixels.
+         * @param scale How many pixels each way to average into one.
+         * @return The downsampled bitmap, in the same format.
+         */
+        private static byte[] downsample(byte[] pixels, int scale) {
+            int width = SnapshotEncoding.scaledWidth(scale);
+            int height = SnapshotEncoding.scaledHeight(scale);
+            byte[] scaled = new byte[width * height * 4];
+            int[] sums = new int[width * 4];
+            for(int y = 0; y < height; y++) {
+                Arrays.fill(sums, 0);
+                int rows = Math.min(scale, HEIGHT - y * scale);
+                for(int row = y * scale; row < y * scale + rows; row++) {
+                    for(int x = 0, i = row * WIDTH * 4; x < WIDTH; x++, i += 4) {
+                        int sum = x / scale * 4;
+                        sums[sum] += pixels[i] & 0xFF;
+                        sums[sum + 1] += pixels[i + 1] & 0xFF;
+                        sums[sum + 2] += pixels[i + 2] & 0xFF;
+                        sums[sum + 3] += pixels[i + 3] & 0xFF;
+                    }
+                }
+                for(int x = 0; x < width; x++) {
+                    int count = rows * Math.min(scale, WIDTH - x * scale);
+                    for(int channel = 0; channel < 4; channel++) {
+                        scaled[(y * width + x) * 4 + channel] = (byte)((sums[x * 4 + channel] + count / 2) / count);
+                    }
+                }
+            }
+            return scaled;
         }
-        return list.toArray(new String[list.size()]);
     }
 }
@@ -1,28 +1,218 @@
 package server;
 
+import shared.LineSegment;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Manages the lifecycle of all whiteboards on the server.
- * Thread safety: Methods are synchronised to prevent threading issues.
+ * Thread safety: whiteboards and clients are kept in concurrent maps, and a whiteboard is only ever added to them
+ * with an atomic put-if-absent, so there is no server-wide lock: joining or creating one board never waits for work on
+ * another. The sorted list of board names is rebuilt when a board is added rather than on every HELLO.
+ * Lobby events: every client that has completed HELLO is told about each new whiteboard with a CREATED message,
+ * whether or not it is on a board. The message is encoded once and sent to every client from the manager's own event
+ * thread, so creating a board costs the creator the same however many clients are connected. Each board list is
+ * numbered, and a client is not sent CREATED for a board that was already in the list its HELLO reply carried.
+ * Persistence: given a Journal, the manager rebuilds every whiteboard on construction from the latest checkpoints (see
+ * Checkpointer) and the journal's tail, and records each new whiteboard in the journal. Journalling a new whiteboard
+ * and publishing it happen together under the creation lock, so that a checkpoint never sees the one without the other.
+ * Memory: if the options set a memory budget, every whiteboard is registered with a RasterCache that spills idle boards'
+ * bitmaps to disk to stay within it.
  */
 public class WhiteboardManager {
-    private Map<String, Whiteboard> whiteboards = new HashMap<>();
-    private Set<Client> clients = new HashSet<>();
+    private final ServerOptions options;
+    private final Journal journal; // Null if boards are not persisted.
+    private final RasterCache cache; // Null if there is no memory budget.
+    private final ConcurrentMap<String, Whiteboard> whiteboards = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Client> clients = new ConcurrentHashMap<>(); // By username.
+    private volatile BoardList boardList = new BoardList(0, new String[0]); // Replaced, never modified.
+    private final ThreadPoolExecutor events = createEventThread();
+    // Shared while a new whiteboard is journalled and published; taken exclusively by checkpoints.
+    private final ReentrantReadWriteLock creation = new ReentrantReadWriteLock();
+
+    /**
+     * The whiteboards' names at some point, sorted, numbered so that later lists have higher generations.
+     */
+    static final class BoardList {
+        final long generation;
+        final String[] names;
+
+        BoardList(long generation, String[] names) {
+            this.generation = generation;
+            this.names = names;
+        }
+    }
+
+    /**
+     * Creates a manager using the default server options.
+     */
+    public WhiteboardManager() {
+        this(new ServerOptions());
+    }
+
+    /**
+     * @param options The server's startup options.
+     */
+    public WhiteboardManager(ServerOptions options) {
+        this.options = options;
+        this.journal = null;
+        this.cache = createCache(options);
+    }
+
+    /**
+     * Creates a manager that persists its whiteboards, restoring those already checkpointed or in the journal.
+     * @param options The server's startup options.
+     * @param journal The journal to replay and then append to.
+     * @throws IOException If the checkpoints or journal cannot be read.
+     */
+    public WhiteboardManager(ServerOptions options, Journal journal) throws IOException {
+        this.options = options;
+        this.journal = journal;
+        this.cache = createCache(options);
+        for(Whiteboard board : Checkpointer.restore(journal.getDirectory(), options.getHistorySize(), journal)) {
+            add(board);
+        }
+        journal.replay(new Journal.Listener() {
+            @Override
+            public void created(String name) {
+                if(!whiteboards.containsKey(name)) { // Otherwise already restored from its checkpoint.
+                    add(new Whiteboard(name, WhiteboardManager.this.options.getHistorySize(),
+                            WhiteboardManager.this.journal));
+                }
+            }
+
+            @Override
+            public void drew(String board, long version, Color colour, float strokeSize, List<LineSegment> segments) {
+                Whiteboard whiteboard = whiteboards.get(board);
+                // Draws up to a board's checkpoint are already in its bitmap.
+                if(whiteboard != null && version > whiteboard.getVersion()) {
+                    whiteboard.replay(colour, strokeSize, segments);
+                }
+            }
+        });
+    }
+
+    private static ThreadPoolExecutor createEventThread() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "Lobby-events");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static RasterCache createCache(ServerOptions options) {
+        if(options.getMemoryBudget() == 0) {
+            return null;
+        }
+        File spill = options.getSpillDirectory();
+        if(spill == null && options.getDataDirectory() != null) {
+            spill = new File(options.getDataDirectory(), "spill");
+        }
+        return new RasterCache(options.getMemoryBudget(), spill);
+    }
+
+    /**
+     * Stores a whiteboard, putting it under the memory budget if there is one.
+     * @return The generation of the first board list to include it, or -1 if there is already a whiteboard by that
+     *         name, in which case nothing changes.
+     */
+    private long add(Whiteboard board) {
+        board.setNormalizing(options.isNormalizing());
+        if(whiteboards.putIfAbsent(board.getName(), board) != null) {
+            return -1;
+        }
+        long generation = addName(board.getName());
+        if(cache != null) {
+            cache.add(board);
+        }
+        return generation;
+    }
+
+    private synchronized long addName(String name) {
+        String[] names = boardList.names;
+        String[] sorted = Arrays.copyOf(names, names.length + 1);
+        int index = -Arrays.binarySearch(names, name) - 1;
+        System.arraycopy(names, index, sorted, index + 1, names.length - index);
+        sorted[index] = name;
+        boardList = new BoardList(boardList.generation + 1, sorted);
+        return boardList.generation;
+    }
+
+    /**
+     * @return The journal whiteboards are persisted to, or null if there is none.
+     */
+    public Journal getJournal() {
+        return journal;
+    }
+
+    /**
+     * @return The cache keeping whiteboard bitmaps within the memory budget, or null if there is no budget.
+     */
+    public RasterCache getRasterCache() {
+        return cache;
+    }
+
+    /**
+     * @return The server's startup options.
+     */
+    public ServerOptions getOptions() {
+        return options;
+    }
 
     /**
      * @return An array of current whiteboard names, sorted in alphabetical order.
      */
-    public synchronized String[] getWhiteboardNames() {
-        Set<String> var = new TreeSet<>(whiteboards.keySet());
-        return var.toArray(new String[var.size()]);
+    public String[] getWhiteboardNames() {
+        return boardList.names.clone();
+    }
+
+    /**
+     * @return The current board list, for a client's HELLO reply.
+     */
+    BoardList getBoardList() {
+        return boardList;
+    }
+
+    /**
+     * @return Every whiteboard on the server.
+     */
+    public List<Whiteboard> getWhiteboards() {
+        return new ArrayList<>(whiteboards.values());
+    }
+
+    /**
+     * While held, no whiteboard can be created, so the journal's current segment and the list of whiteboards can be
+     * read as of the same moment: every board whose CREATE is in an earlier segment is in the list.
+     * @return The lock to hold.
+     */
+    public Lock getCreationLock() {
+        return creation.writeLock();
     }
 
     /**
      * @param name The name of a whiteboard to get
      * @return The whiteboard object, or null if there is no such whiteboard.
      */
-    public synchronized Whiteboard getWhiteboard(String name) {
+    public Whiteboard getWhiteboard(String name) {
         return whiteboards.get(name);
     }
 
@@ -30,7 +220,7 @@ public class WhiteboardManager {
      * @param name The whiteboard being tested
      * @return True if the whiteboard existed, false otherwise.
      */
-    public synchronized boolean hasWhiteboard(String name) {
+    public boolean hasWhiteboard(String name) {
         return whiteboards.containsKey(name);
     }
 
@@ -42,17 +232,51 @@ public class WhiteboardManager {
      * @return The newly-created whiteboard object.
      * @throws ClientException
      */
-    public synchronized Whiteboard createWhiteboard(String name) throws ClientException {
+    public Whiteboard createWhiteboard(String name) throws ClientException {
+        return createWhiteboard(name, null);
+    }
+
+    /**
+     * Creates a new whiteboard for a client, and informs all other connected users of its creation.
+     * @param name The name of the new whiteboard
+     * @param creator The client creating it, which learns of it by joining it; or null.
+     * @return The newly-created whiteboard object.
+     * @throws ClientException If the name is taken, or longer than the journal can record.
+     */
+    public Whiteboard createWhiteboard(String name, final Client creator) throws ClientException {
+        if(name.getBytes(StandardCharsets.UTF_8).length > Journal.MAX_NAME_LENGTH) {
+            throw new ClientException("Whiteboard name too long.");
+        }
         if(whiteboards.containsKey(name)) {
             throw new ClientException("Duplicate whiteboard name.");
         }
-        Whiteboard whiteboard = new Whiteboard(name);
-        whiteboards.put(name, whiteboard);
-        for(Whiteboard board : whiteboards.values()) {
-            for(Client user : board.getUsers()) {
-                user.sendMessage("CREATED " + whiteboard.getName());
+        Whiteboard whiteboard = new Whiteboard(name, options.getHistorySize(), journal);
+        final long generation;
+        creation.readLock().lock();
+        try {
+            if(journal != null) {
+                // Before the board is visible, so its CREATE precedes its first DRAW. If a simultaneous CREATE of the
+                // same name wins below, this record is a duplicate, which replay ignores.
+                journal.appendCreate(name);
             }
+            generation = add(whiteboard);
+        } finally {
+            creation.readLock().unlock();
         }
+        if(generation < 0) {
+            throw new ClientException("Duplicate whiteboard name.");
+        }
+        final Message message = new Message("CREATED " + whiteboard.getName());
+        events.execute(new Runnable() {
+            @Override
+            public void run() {
+                for(Client client : clients.values()) {
+                    if(client != creator && client.wantsBoardEvent(generation)) {
+                        client.send(message);
+                    }
+                }
+            }
+        });
         return whiteboard;
     }
 
@@ -62,11 +286,8 @@ public class WhiteboardManager {
      * @throws ClientException
      */
     public void addClient(Client client) throws ClientException {
-        synchronized (clients) {
-            if(clients.contains(client)) {
-                throw new ClientException("Duplicate username.");
-            }
-            clients.add(client);
+        if(clients.putIfAbsent(client.getUsername(), client) != null) {
+            throw new ClientException("Duplicate username.");
         }
     }
 
@@ -75,26 +296,22 @@ public class WhiteboardManager {
      * @param client The client to remove.
      */
     public void removeClient(Client client) {
-        synchronized (clients) {
-            clients.remove(client);
+        String username = client.getUsername();
+        // Only if it is this client registered under the name, not another that HELLO'd with it first.
+        if(username != null) {
+            clients.remove(username, client);
         }
     }
     
     /**
      * Gets the names of the clients currently connected to the manager.
      * Used primarily for testing
-     * @return List<String> Names of clients
+     * @return List<String> Names of clients, sorted
      */
     public List<String> getClientNames()
     {
-    	synchronized (clients)
-    	{
-    		List<String> names = new ArrayList<String>();
-    		for(Client c : clients)
-    		{
-    			names.add(c.username);
-    		}
-    		return names;
-    	}
+    	List<String> names = new ArrayList<String>(clients.keySet());
+    	Collections.sort(names);
+    	return names;
     }
 }
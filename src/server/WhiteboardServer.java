@@ -1,34 +1,150 @@
 package server;
 
 import java.io.*;
-import java.util.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Main class for the whiteboard server.
- * Thread safety: there is only one thread here.
+ * Thread safety: only the accepting thread runs here; connections are handed off to their own threads or to event
+ * loops, depending on the configured mode.
  */
 public class WhiteboardServer {
-    private final ServerSocket serverSocket;
-    private final WhiteboardManager manager = new WhiteboardManager();
+    private final ServerOptions options;
+    private final WhiteboardManager manager;
     
-    public WhiteboardServer(int port) throws IOException {
-        serverSocket = new ServerSocket(port);
+    /**
+     * Creates the server, restoring persisted whiteboards and checkpointing them if a data directory is configured.
+     * @param options The server's startup options.
+     * @throws IOException If the journal cannot be opened or replayed.
+     */
+    public WhiteboardServer(ServerOptions options) throws IOException {
+        this.options = options;
+        if(options.getDataDirectory() == null) {
+            this.manager = new WhiteboardManager(options);
+            reportCacheOnExit();
+            reportSegmentsOnExit();
+            return;
+        }
+        final Journal journal = new Journal(options.getDataDirectory(), options.getSegmentSize());
+        this.manager = new WhiteboardManager(options, journal);
+        new Checkpointer(manager, journal, options.getCheckpointInterval(), options.getCheckpointOperations()).start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    journal.close();
+                } catch(IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        reportCacheOnExit();
+        reportSegmentsOnExit();
+    }
+
+    /**
+     * Prints the raster cache's counters when the server stops, if there is a memory budget.
+     */
+    private void reportCacheOnExit() {
+        final RasterCache cache = manager.getRasterCache();
+        if(cache == null) {
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                System.out.println("Raster cache: " + cache);
+            }
+        });
+    }
+
+    /**
+     * Prints how many segments draws arrived with, and how many were left after normalising, when the server stops.
+     */
+    private void reportSegmentsOnExit() {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                long in = 0;
+                long out = 0;
+                for(Whiteboard board : manager.getWhiteboards()) {
+                    in += board.getSegmentsIn();
+                    out += board.getSegmentsOut();
+                }
+                if(in > 0) {
+                    System.out.printf("Segments: %d received, %d drawn (%.0f%%)%n", in, out, out * 100.0 / in);
+                }
+            }
+        });
     }
     
     public void serve() throws IOException {
+        switch(options.getMode()) {
+        case SELECTOR:
+            serveSelector();
+            break;
+        case VIRTUAL:
+            serveThreaded(VirtualThreads.factory("Client-"));
+            break;
+        default:
+            serveThreaded(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable);
+                }
+            });
+            break;
+        }
+    }
+
+    /**
+     * Accepts connections and starts a blocking thread for each.
+     * @param threads Supplies the thread each connection runs on.
+     * @throws IOException
+     */
+    private void serveThreaded(ThreadFactory threads) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(options.getPort());
         //noinspection InfiniteLoopStatement
         while(true) {
             Socket socket = serverSocket.accept();
-            Client client = new Client(manager, socket);
-            client.start();
+            Client client = new Client(manager, socket, threads);
+            threads.newThread(client).start();
+        }
+    }
+
+    /**
+     * Accepts connections and distributes them round-robin over a fixed set of event loops.
+     * @throws IOException
+     */
+    private void serveSelector() throws IOException {
+        EventLoop[] loops = new EventLoop[options.getEventLoops()];
+        for(int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(manager, "EventLoop-" + i);
+        }
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(options.getPort()));
+        //noinspection InfiniteLoopStatement
+        for(int next = 0; ; next = (next + 1) % loops.length) {
+            SocketChannel channel = serverChannel.accept();
+            loops[next].register(channel);
         }
     }
     
     public static void main(String[] args) {
         try {
-            WhiteboardServer server = new WhiteboardServer(6005);
+            WhiteboardServer server = new WhiteboardServer(ServerOptions.parse(args));
             server.serve();
+        } catch (UnsupportedOperationException e) {
+            System.err.println(e.getMessage());
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: WhiteboardServer [--port=6005] [--mode=threaded|virtual|selector] [--loops=N]"
+                    + " [--queue=N] [--overflow=resync|disconnect] [--history=N] [--data=DIR] [--segment=MB]"
+                    + " [--checkpoint=SECONDS] [--checkpoint-ops=N] [--memory=MB] [--spill=DIR]"
+                    + " [--normalize=on|off] [--chunk=KB]");
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,87 @@
+package shared;
+
+import java.util.Arrays;
+
+/**
+ * Standard (RFC 4648) base64 with padding, as used for bitmaps on the wire.
+ * This replaces javax.xml.bind.DatatypeConverter, which is no longer shipped with Java 11 and later.
+ * Stateless and thread safe.
+ */
+public class Base64 {
+    private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final int[] VALUES = new int[128];
+
+    static {
+        Arrays.fill(VALUES, -1);
+        for(int i = 0; i < ALPHABET.length; i++) {
+            VALUES[ALPHABET[i]] = i;
+        }
+    }
+
+    private Base64() {
+    }
+
+    /**
+     * @param data Bytes to encode.
+     * @return The base64 text.
+     */
+    public static String encode(byte[] data) {
+        char[] out = new char[(data.length + 2) / 3 * 4];
+        int o = 0;
+        int i = 0;
+        for(; i + 2 < data.length; i += 3) {
+            int bits = (data[i] & 0xff) << 16 | (data[i+1] & 0xff) << 8 | (data[i+2] & 0xff);
+            out[o++] = ALPHABET[bits >>> 18];
+            out[o++] = ALPHABET[(bits >>> 12) & 0x3f];
+            out[o++] = ALPHABET[(bits >>> 6) & 0x3f];
+            out[o++] = ALPHABET[bits & 0x3f];
+        }
+        int left = data.length - i;
+        if(left > 0) {
+            int bits = (data[i] & 0xff) << 16 | (left == 2 ? (data[i+1] & 0xff) << 8 : 0);
+            out[o++] = ALPHABET[bits >>> 18];
+            out[o++] = ALPHABET[(bits >>> 12) & 0x3f];
+            out[o++] = left == 2 ? ALPHABET[(bits >>> 6) & 0x3f] : '=';
+            out[o] = '=';
+        }
+        return new String(out);
+    }
+
+    /**
+     * @param text Base64 text, with or without padding.
+     * @return The decoded bytes.
+     * @throws IllegalArgumentException If the text contains characters outside the base64 alphabet.
+     */
+    public static byte[] decode(String text) {
+        int length = text.length();
+        while(length > 0 && text.charAt(length - 1) == '=') {
+            length--;
+        }
+        byte[] out = new byte[length * 3 / 4];
+        int o = 0;
+        int bits = 0;
+        int count = 0;
+        for(int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            int value = c < 128 ? VALUES[c] : -1;
+            if(value < 0) {
+                throw new IllegalArgumentException("Invalid base64 character: " + c);
+            }
+            bits = bits << 6 | value;
+            if(++count == 4) {
+                out[o++] = (byte)(bits >> 16);
+                out[o++] = (byte)(bits >> 8);
+                out[o++] = (byte)bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+        if(count == 3) {
+            out[o++] = (byte)(bits >> 10);
+            out[o] = (byte)(bits >> 2);
+        } else if(count == 2) {
+            out[o] = (byte)(bits >> 4);
+        }
+        return out;
+    }
+}
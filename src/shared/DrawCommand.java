@@ -0,0 +1,28 @@
+package shared;
+
+import java.awt.Color;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A decoded DRAW: a run of line segments in one colour and stroke width. Immutable.
+ */
+public class DrawCommand {
+    public final int sequence;
+    public final Color colour;
+    public final float strokeWidth;
+    public final List<LineSegment> segments;
+
+    /**
+     * @param sequence The sender's sequence number, or 0 where the message carries none.
+     * @param colour The colour of the line
+     * @param strokeWidth The width of the line, in pixels
+     * @param segments The segments drawn.
+     */
+    public DrawCommand(int sequence, Color colour, float strokeWidth, List<LineSegment> segments) {
+        this.sequence = sequence;
+        this.colour = colour;
+        this.strokeWidth = strokeWidth;
+        this.segments = Collections.unmodifiableList(segments);
+    }
+}
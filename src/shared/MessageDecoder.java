@@ -0,0 +1,158 @@
+package shared;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Turns bytes arriving in arbitrary pieces into protocol messages. Starts out reading newline-terminated text lines
+ * (accepting both "\n" and "\r\n", as BufferedReader.readLine() does) and can be switched to binary frames (see
+ * Protocol) between messages, e.g. from within a handler once HELLO has negotiated them.
+ * Frames longer than the decoder's limit are rejected from their header, and text lines once they pass it. The buffer
+ * grows as a message's bytes arrive rather than being sized from a frame's header, so a peer cannot make it allocate
+ * more than it has actually sent, or more than the limit.
+ * Thread safety: not thread safe; each connection owns one decoder.
+ */
+public class MessageDecoder {
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int RETAINED_CAPACITY = 64 * 1024;
+
+    /**
+     * Receives decoded messages.
+     */
+    public interface Handler {
+        /**
+         * Called for each text line, or text frame in binary mode.
+         * @param line The message, without its terminator.
+         */
+        public void lineReceived(String line);
+
+        /**
+         * Called for each DRAW frame in binary mode.
+         * @param draw The decoded DRAW.
+         */
+        public void drawReceived(DrawCommand draw);
+    }
+
+    private final int maxFrameLength;
+    private byte[] pending = new byte[INITIAL_CAPACITY];
+    private int length = 0;
+    private boolean binary = false;
+    private int frameLength = -1; // Length of the binary frame being assembled, once its header has been read.
+    private int header = 0; // Partially read frame length.
+    private int headerShift = 0;
+
+    /**
+     * Creates a decoder accepting lines and frames up to Protocol.MAX_FRAME_LENGTH.
+     */
+    public MessageDecoder() {
+        this(Protocol.MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * @param maxFrameLength The longest text line (counting any '\r' before its newline) or binary frame to accept,
+     *                       in bytes.
+     */
+    public MessageDecoder(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * Switches between text lines and binary frames. Only takes effect between messages.
+     * @param binary True to read binary frames.
+     */
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    /**
+     * Consumes bytes until one complete message has been decoded and handed to the handler.
+     * @param in Bytes received from the connection. If no message is complete, all of them are consumed and held
+     *           until the next call.
+     * @param handler Receives the decoded message.
+     * @return True if a message was decoded, false if more input is needed.
+     * @throws ProtocolException If a binary frame is malformed, or a message is over the decoder's limit.
+     */
+    public boolean next(ByteBuffer in, Handler handler) throws ProtocolException {
+        return binary ? nextFrame(in, handler) : nextLine(in, handler);
+    }
+
+    private boolean nextLine(ByteBuffer in, Handler handler) throws ProtocolException {
+        while(in.hasRemaining()) {
+            byte b = in.get();
+            if(b == '\n') {
+                int end = length;
+                if(end > 0 && pending[end - 1] == '\r') {
+                    end--;
+                }
+                String line = new String(pending, 0, end, StandardCharsets.UTF_8);
+                reset();
+                handler.lineReceived(line);
+                return true;
+            }
+            if(length == maxFrameLength) {
+                throw new ProtocolException("Line longer than " + maxFrameLength + " bytes.");
+            }
+            if(length == pending.length) {
+                pending = Arrays.copyOf(pending, Math.min(pending.length * 2, maxFrameLength));
+            }
+            pending[length++] = b;
+        }
+        return false;
+    }
+
+    private boolean nextFrame(ByteBuffer in, Handler handler) throws ProtocolException {
+        while(frameLength < 0) {
+            if(!in.hasRemaining()) {
+                return false;
+            }
+            byte b = in.get();
+            header |= (b & 0x7f) << headerShift;
+            headerShift += 7;
+            if((b & 0x80) == 0) {
+                if(header < 1 || header > maxFrameLength) {
+                    throw new ProtocolException("Bad frame length: " + header);
+                }
+                frameLength = header;
+            } else if(headerShift >= 35) {
+                throw new ProtocolException("Malformed frame length.");
+            }
+        }
+        int take = Math.min(in.remaining(), frameLength - length);
+        if(pending.length < length + take) {
+            pending = Arrays.copyOf(pending, Math.min(frameLength, Math.max(length + take, pending.length * 2)));
+        }
+        in.get(pending, length, take);
+        length += take;
+        if(length < frameLength) {
+            return false;
+        }
+        byte type = pending[0];
+        if(type == Protocol.FRAME_TEXT) {
+            String line = new String(pending, 1, frameLength - 1, StandardCharsets.UTF_8);
+            reset();
+            handler.lineReceived(line);
+        } else if(type == Protocol.FRAME_DRAW) {
+            DrawCommand draw = Protocol.decodeDraw(ByteBuffer.wrap(pending, 1, frameLength - 1));
+            reset();
+            handler.drawReceived(draw);
+        } else {
+            throw new ProtocolException("Unknown frame type: " + type);
+        }
+        return true;
+    }
+
+    /**
+     * Forgets the message just decoded, releasing the buffer if a large one grew it.
+     */
+    private void reset() {
+        length = 0;
+        frameLength = -1;
+        header = 0;
+        headerShift = 0;
+        if(pending.length > RETAINED_CAPACITY) {
+            pending = new byte[INITIAL_CAPACITY];
+        }
+    }
+}
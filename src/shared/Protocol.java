@@ -0,0 +1,247 @@
+package shared;
+
+import java.awt.Color;
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wire format helpers shared by the client and server.
+ *
+ * Every connection starts with newline-terminated text. A client may list optional features after its username in
+ * HELLO; the server answers with a FEATURES line naming those it accepted, before its HELLO reply. Besides "binary"
+ * and "resume", the features name SnapshotEncodings for WHITEBOARD bitmaps. If "binary" was accepted, everything
+ * after the FEATURES line (server to client) and after the HELLO line (client to server) is framed as:
+ *
+ *   varint length, type byte, payload (length counts the type byte and payload)
+ *
+ * FRAME_TEXT carries an ordinary protocol line in UTF-8. FRAME_DRAW carries a DRAW compactly: varint sequence
+ * number (0 from the server), three colour bytes (RGB), varint stroke width in quarter pixels, varint number of
+ * runs, then for each run a varint point count followed by the points as zigzag varint deltas from the previous
+ * point (starting at 0,0). Consecutive segments that share an endpoint form one run.
+ *
+ * If "resume" was accepted, every WHITEBOARD message is preceded by "SYNC version", the number of DRAWs the board
+ * had applied when the bitmap was taken; each DRAW that follows advances it by one. After reconnecting, such a
+ * client may send "JOIN name version" with the last version it saw. If the board still remembers every DRAW since
+ * then, the server answers "RESUME name version users..." followed by just those DRAWs; otherwise it answers as for
+ * an ordinary JOIN.
+ *
+ * If "blank" was accepted, the bitmap of a board nobody has drawn on is sent as SnapshotEncoding.BLANK.
+ *
+ * If "chunked" was accepted, a bitmap too large for one message is sent as SnapshotEncoding.CHUNKED in the WHITEBOARD
+ * message, which is followed straight away by "CHUNK remaining text" messages, remaining counting the CHUNKs still to
+ * come after this one. Joined together, their texts make the encoded bitmap (see SnapshotEncoding.split()). The
+ * server sends nothing else between a WHITEBOARD and its last CHUNK; a client that receives a DRAW in between all
+ * the same applies it after the bitmap.
+ *
+ * If "progressive" was also accepted, the CHUNKs after such a WHITEBOARD are split into levels, each introduced by
+ * "LEVEL scale": first smaller copies of the bitmap, in which every pixel is the average of a square of scale x scale
+ * pixels (see SnapshotEncoding.scaledWidth()), and last "LEVEL 1", the bitmap itself. Each level is encoded on its
+ * own and ends with its own "CHUNK 0", so the client can show the previews while the rest arrives.
+ *
+ * Stateless and thread safe.
+ */
+public class Protocol {
+    public static final String FEATURE_BINARY = "binary";
+    public static final String FEATURE_RESUME = "resume";
+    public static final String FEATURE_BLANK = "blank";
+    public static final String FEATURE_CHUNKED = "chunked";
+    public static final String FEATURE_PROGRESSIVE = "progressive";
+
+    public static final byte FRAME_TEXT = 0;
+    public static final byte FRAME_DRAW = 1;
+
+    /** Largest frame a client will accept. Comfortably above the size of a raw bitmap in base64. */
+    public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+    /** Largest frame the server will accept. Clients only send short lines and DRAWs, never bitmaps. */
+    public static final int MAX_CLIENT_FRAME_LENGTH = 1024 * 1024;
+
+    private Protocol() {
+    }
+
+    /**
+     * Formats a server-to-client DRAW line.
+     * @param colour The colour of the line
+     * @param strokeWidth The width of the line, in pixels
+     * @param segments The segments drawn.
+     * @return The DRAW message.
+     */
+    public static String formatDraw(Color colour, float strokeWidth, List<LineSegment> segments) {
+        StringBuilder message = new StringBuilder();
+        message.append("DRAW ");
+        message.append(colour.getRGB());
+        message.append(" ");
+        message.append(Float.toString(strokeWidth));
+        for(LineSegment segment : segments) {
+            message.append(" ");
+            message.append(segment.x1);
+            message.append(" ");
+            message.append(segment.y1);
+            message.append(" ");
+            message.append(segment.x2);
+            message.append(" ");
+            message.append(segment.y2);
+        }
+        return message.toString();
+    }
+
+    /**
+     * Wraps a text line in a binary frame.
+     * @param line The message line, without a terminator.
+     * @return The complete frame.
+     */
+    public static byte[] textFrame(String line) {
+        byte[] text = line.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(text.length + 6);
+        writeVarint(frame, text.length + 1);
+        frame.write(FRAME_TEXT);
+        frame.write(text, 0, text.length);
+        return frame.toByteArray();
+    }
+
+    /**
+     * Encodes a DRAW as a binary frame.
+     * @param sequence The sender's sequence number, or 0.
+     * @param colour The colour of the line; only the RGB components are sent.
+     * @param strokeWidth The width of the line, in pixels. Sent to the nearest quarter pixel.
+     * @param segments The segments drawn.
+     * @return The complete frame.
+     */
+    public static byte[] drawFrame(int sequence, Color colour, float strokeWidth, List<LineSegment> segments) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(16 + segments.size() * 4);
+        payload.write(FRAME_DRAW);
+        writeVarint(payload, sequence);
+        int rgb = colour.getRGB();
+        payload.write(rgb >> 16);
+        payload.write(rgb >> 8);
+        payload.write(rgb);
+        writeVarint(payload, quantizeWidth(strokeWidth));
+
+        List<Integer> runLengths = new ArrayList<>();
+        for(int i = 0; i < segments.size(); i++) {
+            if(i > 0 && continues(segments.get(i - 1), segments.get(i))) {
+                runLengths.set(runLengths.size() - 1, runLengths.get(runLengths.size() - 1) + 1);
+            } else {
+                runLengths.add(2);
+            }
+        }
+        writeVarint(payload, runLengths.size());
+        int lastX = 0;
+        int lastY = 0;
+        int segment = 0;
+        for(int points : runLengths) {
+            writeVarint(payload, points);
+            LineSegment first = segments.get(segment);
+            writeVarint(payload, zigzag(first.x1 - lastX));
+            writeVarint(payload, zigzag(first.y1 - lastY));
+            lastX = first.x1;
+            lastY = first.y1;
+            for(int i = 1; i < points; i++, segment++) {
+                LineSegment current = segments.get(segment);
+                writeVarint(payload, zigzag(current.x2 - lastX));
+                writeVarint(payload, zigzag(current.y2 - lastY));
+                lastX = current.x2;
+                lastY = current.y2;
+            }
+        }
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.size() + 5);
+        writeVarint(frame, payload.size());
+        frame.write(payload.toByteArray(), 0, payload.size());
+        return frame.toByteArray();
+    }
+
+    /**
+     * Decodes the payload of a FRAME_DRAW (everything after the type byte).
+     * @param payload The payload.
+     * @return The decoded DRAW.
+     * @throws ProtocolException If the payload is malformed.
+     */
+    public static DrawCommand decodeDraw(ByteBuffer payload) throws ProtocolException {
+        try {
+            int sequence = readVarint(payload);
+            int rgb = (payload.get() & 0xff) << 16 | (payload.get() & 0xff) << 8 | (payload.get() & 0xff);
+            float strokeWidth = readVarint(payload) / 4f;
+            int runs = readVarint(payload);
+            List<LineSegment> segments = new ArrayList<>();
+            int lastX = 0;
+            int lastY = 0;
+            for(int run = 0; run < runs; run++) {
+                int points = readVarint(payload);
+                if(points < 2 || points > payload.remaining()) {
+                    throw new ProtocolException("Bad run length in DRAW frame.");
+                }
+                lastX += unzigzag(readVarint(payload));
+                lastY += unzigzag(readVarint(payload));
+                for(int i = 1; i < points; i++) {
+                    int x = lastX + unzigzag(readVarint(payload));
+                    int y = lastY + unzigzag(readVarint(payload));
+                    segments.add(new LineSegment(lastX, lastY, x, y));
+                    lastX = x;
+                    lastY = y;
+                }
+            }
+            return new DrawCommand(sequence, new Color(rgb), strokeWidth, segments);
+        } catch(BufferUnderflowException e) {
+            throw new ProtocolException("Truncated DRAW frame.");
+        }
+    }
+
+    /**
+     * @param strokeWidth A stroke width in pixels.
+     * @return The width in quarter pixels, as sent in binary frames.
+     */
+    public static int quantizeWidth(float strokeWidth) {
+        return Math.max(0, Math.round(strokeWidth * 4));
+    }
+
+    /**
+     * @return True if the second segment starts where the first ended.
+     */
+    private static boolean continues(LineSegment previous, LineSegment next) {
+        return previous.x2 == next.x1 && previous.y2 == next.y1;
+    }
+
+    /**
+     * Writes an unsigned LEB128 varint.
+     * @param out Destination.
+     * @param value The value; treated as unsigned.
+     */
+    public static void writeVarint(ByteArrayOutputStream out, int value) {
+        while((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Reads an unsigned LEB128 varint.
+     * @param in Source.
+     * @return The value.
+     * @throws ProtocolException If the varint is longer than five bytes.
+     */
+    public static int readVarint(ByteBuffer in) throws ProtocolException {
+        int value = 0;
+        for(int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Malformed varint.");
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
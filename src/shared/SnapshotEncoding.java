@@ -0,0 +1,151 @@
+package shared;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * How a whiteboard bitmap is written into a WHITEBOARD message. The raw form is plain base64 of the pixel data and
+ * is what every client understands; other forms are only sent to clients that asked for them in HELLO and carry a
+ * prefix, which cannot occur in base64, so that decode() can tell them apart. Clients that list the "blank" feature
+ * (Protocol.FEATURE_BLANK) are sent BLANK instead of any encoding for a board nobody has drawn on. Clients that list
+ * "chunked" (Protocol.FEATURE_CHUNKED) may be sent CHUNKED instead, with the encoded bitmap following in pieces made
+ * by split().
+ * Stateless and thread safe.
+ */
+public enum SnapshotEncoding {
+    /** Base64 of the raw pixel data. */
+    RAW(null, ""),
+    /** "z:" followed by base64 of the deflated pixel data. */
+    DEFLATE("deflate", "z:");
+
+    /** Stands for an all-white bitmap, whatever the encoding. */
+    public static final String BLANK = "b:";
+    /** Stands for a bitmap that follows in CHUNK messages. */
+    public static final String CHUNKED = "c:";
+
+    /** The size of every whiteboard, in pixels. */
+    public static final int WIDTH = 800;
+    public static final int HEIGHT = 600;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int BITMAP_SIZE = WIDTH * HEIGHT * 4;
+
+    private final String feature;
+    private final String prefix;
+
+    private SnapshotEncoding(String feature, String prefix) {
+        this.feature = feature;
+        this.prefix = prefix;
+    }
+
+    /**
+     * @return The HELLO feature a client lists to receive this encoding, or null for the default.
+     */
+    public String getFeature() {
+        return feature;
+    }
+
+    /**
+     * @param scale How many pixels each way every pixel of a downsampled bitmap stands for; 1 for full size.
+     * @return The width of the bitmap at that scale.
+     */
+    public static int scaledWidth(int scale) {
+        return (WIDTH + scale - 1) / scale;
+    }
+
+    /**
+     * @param scale How many pixels each way every pixel of a downsampled bitmap stands for; 1 for full size.
+     * @return The height of the bitmap at that scale.
+     */
+    public static int scaledHeight(int scale) {
+        return (HEIGHT + scale - 1) / scale;
+    }
+
+    /**
+     * @return What text in this encoding starts with.
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Encodes a bitmap for a WHITEBOARD message.
+     * @param bitmap The raw pixel data.
+     * @return The text to put in the message.
+     */
+    public String encode(byte[] bitmap) {
+        if(this == RAW) {
+            return Base64.encode(bitmap);
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(bitmap);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_SIZE);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while(!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return prefix + Base64.encode(out.toByteArray());
+    }
+
+    /**
+     * Decodes the bitmap in a WHITEBOARD message, whichever encoding it uses.
+     * @param text The bitmap as it appeared in the message.
+     * @return The raw pixel data.
+     * @throws IllegalArgumentException If the text is not a valid encoding.
+     */
+    public static byte[] decode(String text) {
+        if(text.equals(BLANK)) {
+            byte[] bitmap = new byte[BITMAP_SIZE];
+            Arrays.fill(bitmap, (byte)0xFF);
+            return bitmap;
+        }
+        if(!text.startsWith(DEFLATE.prefix)) {
+            return Base64.decode(text);
+        }
+        Inflater inflater = new Inflater();
+        inflater.setInput(Base64.decode(text.substring(DEFLATE.prefix.length())));
+        ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_SIZE);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            while(!inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated compressed bitmap.");
+                }
+                out.write(buffer, 0, inflated);
+            }
+        } catch(DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt compressed bitmap: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Splits an encoded bitmap into pieces for CHUNK messages. Every piece but the first, which also carries the
+     * prefix, is a whole number of base64 groups, so each can be decoded as soon as it arrives.
+     * @param text The encoded bitmap.
+     * @param size The most characters of base64 in each piece; rounded down to a whole number of groups.
+     * @return The pieces, in order. Joined together, they make the text.
+     */
+    public static List<String> split(String text, int size) {
+        int prefix = text.startsWith(DEFLATE.prefix) ? DEFLATE.prefix.length() : 0;
+        int step = Math.max(4, size - size % 4);
+        List<String> pieces = new ArrayList<>((text.length() - prefix) / step + 1);
+        int start = 0;
+        for(int end = prefix + step; end < text.length(); end += step) {
+            pieces.add(text.substring(start, end));
+            start = end;
+        }
+        pieces.add(text.substring(start));
+        return pieces;
+    }
+}
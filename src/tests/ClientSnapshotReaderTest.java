@@ -0,0 +1,140 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import client.SnapshotReader;
+import server.Whiteboard;
+import shared.LineSegment;
+import shared.SnapshotEncoding;
+
+/**
+ * Tests for decoding whiteboard bitmaps a piece at a time.
+ * TESTING STRATEGY:
+ * 1. Split pieces are within the size asked for, keep base64 groups whole, and join up to the encoded bitmap
+ * 2. Each encoding decodes to the board's pixels, whole or in pieces of any size, split anywhere
+ * 3. The blank marker decodes to a white bitmap
+ * 4. Truncated and oversized bitmaps are rejected
+ * 5. A downsampled level is read at its own size
+ */
+public class ClientSnapshotReaderTest {
+    private static Whiteboard drawnBoard() {
+        Whiteboard board = new Whiteboard("reader");
+        board.draw(Color.RED, 5, Arrays.asList(new LineSegment(10, 10, 200, 300)));
+        board.draw(new Color(0x12, 0x34, 0x56), 1, Arrays.asList(new LineSegment(799, 0, 0, 599)));
+        return board;
+    }
+
+    private static BufferedImage read(List<String> pieces) {
+        SnapshotReader reader = new SnapshotReader();
+        for(String piece : pieces) {
+            reader.append(piece);
+        }
+        return reader.finish();
+    }
+
+    private static void assertPixels(byte[] bitmap, BufferedImage image) {
+        for(int y = 0; y < SnapshotEncoding.HEIGHT; y++) {
+            for(int x = 0; x < SnapshotEncoding.WIDTH; x++) {
+                int j = (y * SnapshotEncoding.WIDTH + x) * 4;
+                int argb = (bitmap[j] & 0xFF) << 24 | (bitmap[j + 3] & 0xFF) << 16 | (bitmap[j + 2] & 0xFF) << 8
+                        | bitmap[j + 1] & 0xFF;
+                assertEquals("Pixel " + x + "," + y, argb, image.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testSplit() {
+        for(SnapshotEncoding encoding : SnapshotEncoding.values()) {
+            String text = drawnBoard().getSerializedImage(encoding);
+            List<String> pieces = SnapshotEncoding.split(text, 1001);
+            StringBuilder joined = new StringBuilder();
+            for(int i = 0; i < pieces.size(); i++) {
+                String piece = pieces.get(i);
+                int base64 = piece.length() - (i == 0 ? encoding.getPrefix().length() : 0);
+                assertTrue(base64 <= 1000);
+                if(i < pieces.size() - 1) {
+                    assertEquals(0, base64 % 4);
+                }
+                joined.append(piece);
+            }
+            assertEquals(text, joined.toString());
+            assertEquals(Arrays.asList(text), SnapshotEncoding.split(text, text.length()));
+        }
+    }
+
+    @Test
+    public void testPieces() {
+        Whiteboard board = drawnBoard();
+        byte[] bitmap = SnapshotEncoding.decode(board.getSerializedImage());
+        for(SnapshotEncoding encoding : SnapshotEncoding.values()) {
+            String text = board.getSerializedImage(encoding);
+            assertPixels(bitmap, read(Arrays.asList(text)));
+            assertPixels(bitmap, read(SnapshotEncoding.split(text, 4096)));
+            // Split mid-group and mid-pixel, as a client must cope with.
+            for(int size : new int[] {1, 7, 333}) {
+                if(text.length() / size > 100000) {
+                    continue;
+                }
+                String[] pieces = new String[(text.length() + size - 1) / size];
+                for(int i = 0; i < pieces.length; i++) {
+                    pieces[i] = text.substring(i * size, Math.min(text.length(), (i + 1) * size));
+                }
+                assertPixels(bitmap, read(Arrays.asList(pieces)));
+            }
+        }
+    }
+
+    @Test
+    public void testBlank() {
+        BufferedImage image = read(Arrays.asList(SnapshotEncoding.BLANK));
+        assertEquals(0xFFFFFFFF, image.getRGB(0, 0));
+        assertEquals(0xFFFFFFFF, image.getRGB(SnapshotEncoding.WIDTH - 1, SnapshotEncoding.HEIGHT - 1));
+    }
+
+    @Test
+    public void testWrongSize() {
+        for(SnapshotEncoding encoding : SnapshotEncoding.values()) {
+            String text = drawnBoard().getSerializedImage(encoding);
+            List<String> pieces = SnapshotEncoding.split(text, 4096);
+            try {
+                read(pieces.subList(0, pieces.size() - 1));
+                fail("Truncated " + encoding + " bitmap accepted");
+            } catch(IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+        String raw = drawnBoard().getSerializedImage();
+        try {
+            read(Arrays.asList(raw, "AAAA"));
+            fail("Oversized bitmap accepted");
+        } catch(IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testScaled() {
+        int width = SnapshotEncoding.scaledWidth(8);
+        int height = SnapshotEncoding.scaledHeight(8);
+        byte[] bitmap = new byte[width * height * 4];
+        for(int i = 0; i < bitmap.length; i++) {
+            bitmap[i] = (byte)(i * 7);
+        }
+        SnapshotReader reader = new SnapshotReader(8);
+        reader.append(SnapshotEncoding.DEFLATE.encode(bitmap));
+        BufferedImage image = reader.finish();
+        assertEquals(width, image.getWidth());
+        assertEquals(height, image.getHeight());
+        int last = bitmap.length - 4;
+        assertEquals((bitmap[last] & 0xFF) << 24 | (bitmap[last + 3] & 0xFF) << 16 | (bitmap[last + 2] & 0xFF) << 8
+                | bitmap[last + 1] & 0xFF, image.getRGB(width - 1, height - 1));
+    }
+}
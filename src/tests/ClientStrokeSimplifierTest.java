@@ -0,0 +1,93 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import client.StrokeSimplifier;
+import shared.LineSegment;
+
+/**
+ * Tests for simplifying strokes before they are sent.
+ * TESTING STRATEGY:
+ * 1. Straight and nearly straight strokes become a single line; corners are kept
+ * 2. A tolerance of 0 keeps every point off the line
+ * 3. Disconnected lines, and single-point dots, are kept apart
+ * 4. A long stroke taken in pieces still joins up
+ * 5. Lines in and out are counted
+ */
+public class ClientStrokeSimplifierTest {
+    private static void assertSegment(LineSegment segment, int x1, int y1, int x2, int y2) {
+        assertEquals(x1, segment.x1);
+        assertEquals(y1, segment.y1);
+        assertEquals(x2, segment.x2);
+        assertEquals(y2, segment.y2);
+    }
+
+    @Test
+    public void testStraightAndCorners() {
+        StrokeSimplifier simplifier = new StrokeSimplifier(1);
+        for(int x = 0; x < 50; x++) {
+            simplifier.add(x, x % 2, x + 1, (x + 1) % 2); // A one pixel wobble.
+        }
+        for(int y = 0; y < 50; y++) {
+            simplifier.add(50, y, 50, y + 1);
+        }
+        List<LineSegment> lines = simplifier.finish();
+        assertEquals(2, lines.size());
+        assertSegment(lines.get(0), 0, 0, 50, 0);
+        assertSegment(lines.get(1), 50, 0, 50, 50);
+    }
+
+    @Test
+    public void testZeroTolerance() {
+        StrokeSimplifier simplifier = new StrokeSimplifier(0);
+        simplifier.add(0, 0, 10, 0);
+        simplifier.add(10, 0, 20, 0);
+        simplifier.add(20, 0, 30, 1);
+        List<LineSegment> lines = simplifier.finish();
+        assertEquals(2, lines.size());
+        assertSegment(lines.get(0), 0, 0, 20, 0);
+        assertSegment(lines.get(1), 20, 0, 30, 1);
+    }
+
+    @Test
+    public void testDisconnectedLinesAndDots() {
+        StrokeSimplifier simplifier = new StrokeSimplifier(2);
+        simplifier.add(0, 0, 10, 0);
+        simplifier.add(100, 100, 100, 100);
+        simplifier.add(5, 5, 6, 6);
+        List<LineSegment> lines = simplifier.finish();
+        assertEquals(3, lines.size());
+        assertSegment(lines.get(0), 0, 0, 10, 0);
+        assertSegment(lines.get(1), 100, 100, 100, 100);
+        assertSegment(lines.get(2), 5, 5, 6, 6);
+    }
+
+    @Test
+    public void testPiecesJoinUp() {
+        StrokeSimplifier simplifier = new StrokeSimplifier(1);
+        int x = 0;
+        boolean full = false;
+        while(!full) {
+            full = simplifier.add(x, 0, x + 1, 0);
+            x++;
+        }
+        assertEquals(x, simplifier.getPending());
+        List<LineSegment> first = simplifier.take();
+        assertEquals(0, simplifier.getPending());
+        simplifier.add(x, 0, x, 10);
+        List<LineSegment> second = simplifier.finish();
+        assertEquals(1, first.size());
+        assertSegment(first.get(0), 0, 0, x, 0);
+        assertEquals(1, second.size());
+        assertSegment(second.get(0), x, 0, x, 10);
+
+        assertEquals(x + 1, simplifier.getLinesIn());
+        assertEquals(2, simplifier.getSegmentsOut());
+        assertEquals(2.0 / (x + 1), simplifier.getReduction(), 1e-9);
+        assertTrue(simplifier.finish().isEmpty());
+    }
+}
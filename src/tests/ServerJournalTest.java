@@ -0,0 +1,276 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import server.Checkpointer;
+import server.ClientException;
+import server.Journal;
+import server.ServerOptions;
+import server.Whiteboard;
+import server.WhiteboardManager;
+import shared.LineSegment;
+
+/**
+ * Tests for persisting whiteboards in the journal.
+ * TESTING STRATEGY:
+ * 1. Boards and their draws survive reopening the journal, including across segment files
+ * 2. Callbacks run once their record is durable
+ * 3. A damaged tail is discarded and later appends still replay
+ * 4. Checkpoints cover changed boards only, truncate the journal, and recovery combines them with the journal's tail
+ * 5. A checkpoint taken while a board is being created, after the journal has moved on to a new segment, does not
+ *    lose the board
+ * 6. Boards whose names are too long to use in a file name are checkpointed and restored like any other
+ * 7. A name as long as the journal can record survives reopening; a longer one is refused before it is journalled,
+ *    leaving later records intact
+ */
+public class ServerJournalTest {
+    private static final int SEGMENT_SIZE = 4096;
+
+    private static File directory() throws IOException {
+        File directory = File.createTempFile("journal", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        return directory;
+    }
+
+    private static WhiteboardManager open(File directory) throws IOException {
+        return new WhiteboardManager(new ServerOptions(), new Journal(directory, SEGMENT_SIZE));
+    }
+
+    private static void drawLines(Whiteboard board, int count) {
+        for(int i = 0; i < count; i++) {
+            board.draw(new Color(i * 40503 & 0xFFFFFF), i % 7, Arrays.asList(new LineSegment(i, 2 * i, 700 - i, 500 - i)));
+        }
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        File directory = directory();
+        WhiteboardManager manager = open(directory);
+        Whiteboard first = manager.createWhiteboard("first");
+        Whiteboard second = manager.createWhiteboard("second");
+        drawLines(first, 200);
+        drawLines(second, 3);
+        manager.getJournal().close();
+        assertTrue("Expected several segments", directory.list().length > 1);
+
+        WhiteboardManager reopened = open(directory);
+        assertArrayEquals(new String[]{"first", "second"}, reopened.getWhiteboardNames());
+        assertEquals(200, reopened.getWhiteboard("first").getVersion());
+        assertEquals(first.getSerializedImage(), reopened.getWhiteboard("first").getSerializedImage());
+        assertEquals(second.getSerializedImage(), reopened.getWhiteboard("second").getSerializedImage());
+        reopened.getJournal().close();
+    }
+
+    @Test
+    public void testLongestName() throws Exception {
+        File directory = directory();
+        WhiteboardManager manager = open(directory);
+        char[] letters = new char[Journal.MAX_NAME_LENGTH];
+        Arrays.fill(letters, 'x');
+        String longest = new String(letters);
+        drawLines(manager.createWhiteboard(longest), 3);
+        try {
+            manager.createWhiteboard(longest + "x");
+            fail("Expected a ClientException");
+        } catch(ClientException e) {
+            // Expected.
+        }
+        drawLines(manager.createWhiteboard("after"), 4);
+        manager.getJournal().close();
+
+        WhiteboardManager reopened = open(directory);
+        assertArrayEquals(new String[]{"after", longest}, reopened.getWhiteboardNames());
+        assertEquals(3, reopened.getWhiteboard(longest).getVersion());
+        assertEquals(4, reopened.getWhiteboard("after").getVersion());
+        reopened.getJournal().close();
+    }
+
+    @Test
+    public void testWhenDurable() throws Exception {
+        WhiteboardManager manager = open(directory());
+        Whiteboard board = manager.createWhiteboard("board");
+        final CountDownLatch done = new CountDownLatch(1);
+        long position = board.draw(Color.BLACK, 2, Arrays.asList(new LineSegment(1, 2, 3, 4)));
+        assertTrue(position > 0);
+        manager.getJournal().whenDurable(position, new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        manager.getJournal().close();
+    }
+
+    @Test
+    public void testDamagedTail() throws Exception {
+        File directory = directory();
+        WhiteboardManager manager = open(directory);
+        drawLines(manager.createWhiteboard("board"), 5);
+        manager.getJournal().close();
+
+        // Flip a byte in the last record, as a torn write would leave it.
+        File[] files = directory.listFiles();
+        Arrays.sort(files);
+        RandomAccessFile file = new RandomAccessFile(files[files.length - 1], "rw");
+        List<Integer> starts = new ArrayList<>();
+        for(int position = 0; ; ) {
+            file.seek(position);
+            int length = file.readInt();
+            if(length == 0) {
+                break;
+            }
+            starts.add(position);
+            position += 8 + length;
+        }
+        file.seek(starts.get(starts.size() - 1) + 12);
+        file.write(0x7F);
+        file.close();
+
+        WhiteboardManager recovered = open(directory);
+        assertEquals(4, recovered.getWhiteboard("board").getVersion());
+        drawLines(recovered.getWhiteboard("board"), 2);
+        recovered.getJournal().close();
+        assertEquals(6, open(directory).getWhiteboard("board").getVersion());
+    }
+
+    private static int segments(File directory) {
+        return directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".log");
+            }
+        }).length;
+    }
+
+    @Test
+    public void testCheckpoint() throws Exception {
+        File directory = directory();
+        WhiteboardManager manager = open(directory);
+        Whiteboard busy = manager.createWhiteboard("busy");
+        Whiteboard quiet = manager.createWhiteboard("quiet");
+        drawLines(busy, 200);
+        drawLines(quiet, 2);
+        Checkpointer checkpointer = new Checkpointer(manager, manager.getJournal(), 60000, 10000);
+        assertEquals(2, checkpointer.checkpoint());
+        assertEquals("Covered segments not deleted", 1, segments(directory));
+
+        drawLines(busy, 5);
+        assertEquals("Unchanged board checkpointed again", 1, checkpointer.checkpoint());
+        drawLines(busy, 3);
+        Whiteboard late = manager.createWhiteboard("late");
+        drawLines(late, 4);
+        manager.getJournal().close();
+
+        WhiteboardManager reopened = open(directory);
+        assertArrayEquals(new String[]{"busy", "late", "quiet"}, reopened.getWhiteboardNames());
+        assertEquals(208, reopened.getWhiteboard("busy").getVersion());
+        assertEquals(busy.getSerializedImage(), reopened.getWhiteboard("busy").getSerializedImage());
+        assertEquals(quiet.getSerializedImage(), reopened.getWhiteboard("quiet").getSerializedImage());
+        assertEquals(late.getSerializedImage(), reopened.getWhiteboard("late").getSerializedImage());
+        assertEquals("Only boards changed since their checkpoints", 2,
+                new Checkpointer(reopened, reopened.getJournal(), 60000, 10000).checkpoint());
+        reopened.getJournal().close();
+    }
+
+    @Test
+    public void testCheckpointLongName() throws Exception {
+        File directory = directory();
+        WhiteboardManager manager = open(directory);
+        char[] letters = new char[1000];
+        Arrays.fill(letters, '\u00e9');
+        String name = new String(letters);
+        Whiteboard lengthy = manager.createWhiteboard(name);
+        Whiteboard other = manager.createWhiteboard("other");
+        drawLines(lengthy, 200);
+        drawLines(other, 2);
+        assertEquals(2, new Checkpointer(manager, manager.getJournal(), 60000, 10000).checkpoint());
+        assertEquals("Covered segments not deleted", 1, segments(directory));
+        manager.getJournal().close();
+
+        WhiteboardManager reopened = open(directory);
+        assertArrayEquals(new String[]{"other", name}, reopened.getWhiteboardNames());
+        assertEquals(200, reopened.getWhiteboard(name).getVersion());
+        assertEquals(lengthy.getSerializedImage(), reopened.getWhiteboard(name).getSerializedImage());
+        assertEquals(0, new Checkpointer(reopened, reopened.getJournal(), 60000, 10000).checkpoint());
+        reopened.getJournal().close();
+    }
+
+    /**
+     * Journal that, once the CREATE of a given board is appended, fills the rest of the segment with draws on another
+     * board and starts a checkpoint, all before the new board can be published.
+     */
+    private static class RacingJournal extends Journal {
+        private final String racing;
+        private volatile WhiteboardManager manager;
+        private volatile Thread checkpoint;
+
+        RacingJournal(File directory, String racing) throws IOException {
+            super(directory, SEGMENT_SIZE);
+            this.racing = racing;
+        }
+
+        @Override
+        public long appendCreate(String name) {
+            long record = super.appendCreate(name);
+            if(name.equals(racing)) {
+                long segment = getCurrentSegment();
+                Whiteboard busy = manager.getWhiteboard("busy");
+                while(getCurrentSegment() == segment) {
+                    drawLines(busy, 1);
+                }
+                checkpoint = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            new Checkpointer(manager, RacingJournal.this, 60000, 10000).checkpoint();
+                        } catch(IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+                checkpoint.start();
+                try {
+                    // Long enough for an unsynchronised checkpoint to finish.
+                    checkpoint.join(500);
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return record;
+        }
+    }
+
+    @Test
+    public void testCheckpointRacingCreate() throws Exception {
+        File directory = directory();
+        RacingJournal journal = new RacingJournal(directory, "raced");
+        WhiteboardManager manager = new WhiteboardManager(new ServerOptions(), journal);
+        journal.manager = manager;
+        manager.createWhiteboard("busy");
+        Whiteboard raced = manager.createWhiteboard("raced");
+        journal.checkpoint.join();
+        drawLines(raced, 3);
+        journal.close();
+
+        WhiteboardManager reopened = open(directory);
+        assertNotNull("Board lost", reopened.getWhiteboard("raced"));
+        assertEquals(3, reopened.getWhiteboard("raced").getVersion());
+        assertEquals(raced.getSerializedImage(), reopened.getWhiteboard("raced").getSerializedImage());
+        reopened.getJournal().close();
+    }
+}
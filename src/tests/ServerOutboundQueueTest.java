@@ -0,0 +1,206 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import server.Client;
+import server.ClientException;
+import server.Message;
+import server.OutboundQueue;
+import server.Transport;
+import server.Whiteboard;
+import server.WhiteboardManager;
+import shared.LineSegment;
+
+/**
+ * Tests for per-client outbound queueing and the overflow policy.
+ * TESTING STRATEGY:
+ * 1. Queue bound is enforced, and replace() ignores it
+ * 2. Closed queues drain, then report end of stream
+ * 3. A client whose transport is full is resynchronised with a fresh WHITEBOARD message, or a fresh HELLO if it is
+ *    not on a whiteboard, keeping its FEATURES and HELLO reply if they are still waiting
+ * 4. Every view of a shared message starts at its beginning
+ * 5. A resync racing a JOIN never leaves the client sent its old whiteboard after its new one
+ */
+public class ServerOutboundQueueTest {
+    /**
+     * Transport that records what it is given and holds at most a fixed number of messages.
+     */
+    private static class FakeTransport implements Transport {
+        private final int capacity;
+        private final List<String> queued = new ArrayList<>();
+        private boolean aborted = false;
+
+        FakeTransport(int capacity) {
+            this.capacity = capacity;
+        }
+
+        @Override
+        public synchronized boolean write(Message message) {
+            if(queued.size() >= capacity) {
+                return false;
+            }
+            queued.add(message.getText());
+            return true;
+        }
+
+        @Override
+        public synchronized void replaceQueued(List<Message> messages, Collection<Message> kept) {
+            List<String> waiting = new ArrayList<>(queued);
+            queued.clear();
+            for(Message message : kept) {
+                if(waiting.contains(message.getText())) {
+                    queued.add(message.getText());
+                }
+            }
+            for(Message message : messages) {
+                queued.add(message.getText());
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort() {
+            aborted = true;
+        }
+
+        @Override
+        public void offload(Runnable task) {
+            task.run();
+        }
+
+        synchronized List<String> getQueued() {
+            return new ArrayList<>(queued);
+        }
+    }
+
+    @Test
+    public void testBound() {
+        OutboundQueue queue = new OutboundQueue(2);
+        assertTrue(queue.offer(new Message("1")));
+        assertTrue(queue.offer(new Message("2")));
+        assertFalse(queue.offer(new Message("3")));
+        queue.replace(Arrays.asList(new Message("4"), new Message("5"), new Message("6")));
+        assertEquals("4", queue.poll().getText());
+        assertEquals("5", queue.poll().getText());
+        assertEquals("6", queue.poll().getText());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testClose() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(2);
+        queue.offer(new Message("1"));
+        queue.close();
+        assertTrue("Writes after close are silently dropped", queue.offer(new Message("2")));
+        assertEquals("1", queue.take().getText());
+        assertNull(queue.take());
+    }
+
+    @Test
+    public void testResyncOnOverflow() throws ClientException {
+        WhiteboardManager manager = new WhiteboardManager();
+        FakeTransport transport = new FakeTransport(4);
+        Client client = new Client(manager, transport);
+        client.lineReceived("HELLO sam");
+        client.lineReceived("CREATE board");
+        for(int i = 0; i < 3; i++) {
+            client.sendMessage("PING " + i);
+        }
+        assertFalse(transport.aborted);
+        assertEquals(2, transport.queued.size());
+        assertEquals("HELLO ", transport.queued.get(0)); // Still waiting, so kept.
+        assertTrue(transport.queued.get(1).startsWith("WHITEBOARD board "));
+        assertTrue(transport.queued.get(1).endsWith(" sam"));
+    }
+
+    @Test
+    public void testResyncInLobby() throws Exception {
+        WhiteboardManager manager = new WhiteboardManager();
+        manager.createWhiteboard("board");
+        FakeTransport transport = new FakeTransport(3);
+        Client client = new Client(manager, transport);
+        client.lineReceived("HELLO sam blank");
+        client.sendMessage("PING");
+        client.sendMessage("PING");
+        assertFalse(transport.aborted);
+        assertEquals(Arrays.asList("FEATURES blank", "HELLO board", "HELLO board"), transport.getQueued());
+
+        // Once the greeting has been written, only the fresh board list is sent, including boards created since.
+        transport.queued.clear();
+        manager.createWhiteboard("other");
+        for(int i = 0; i < 200 && transport.getQueued().isEmpty(); i++) {
+            Thread.sleep(10); // CREATED is published asynchronously.
+        }
+        assertEquals(Arrays.asList("CREATED other"), transport.getQueued());
+        for(int i = 0; i < 4; i++) {
+            client.sendMessage("PING " + i);
+        }
+        assertEquals(Arrays.asList("HELLO board other", "PING 3"), transport.getQueued());
+    }
+
+    @Test
+    public void testResyncRacingJoin() throws Exception {
+        WhiteboardManager manager = new WhiteboardManager();
+        final Whiteboard first = manager.createWhiteboard("first");
+        manager.createWhiteboard("second");
+        for(int attempt = 0; attempt < 50; attempt++) {
+            FakeTransport transport = new FakeTransport(4);
+            Client client = new Client(manager, transport);
+            client.lineReceived("HELLO sam" + attempt);
+            client.lineReceived("JOIN first");
+            // Each round changes the first board, then overflows the client's queue with messages sent outside the
+            // board's lock, as ACKs and CREATEDs are, so a fresh snapshot of the first board is being encoded for it
+            // over and over while it moves to the second.
+            final Client flooded = client;
+            final AtomicBoolean joined = new AtomicBoolean();
+            Thread drawer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int i = 0; !joined.get(); i++) {
+                        first.draw(Color.BLACK, 2, Arrays.asList(new LineSegment(i % 800, 0, 0, i % 600)));
+                        for(int j = 0; j < 3; j++) {
+                            flooded.sendMessage("PING " + i);
+                        }
+                    }
+                }
+            });
+            drawer.start();
+            Thread.sleep(attempt % 5);
+            client.lineReceived("JOIN second");
+            joined.set(true);
+            drawer.join();
+            String last = null;
+            for(String line : transport.getQueued()) {
+                if(line.startsWith("WHITEBOARD ")) {
+                    last = line;
+                }
+            }
+            assertNotNull(last);
+            assertEquals("second", last.split(" ")[1]);
+            client.disconnected();
+        }
+    }
+
+    @Test
+    public void testSharedMessageViews() {
+        Message message = new Message("DRAW 1 2.0 1 2 3 4");
+        ByteBuffer first = message.buffer();
+        first.get(new byte[4]);
+        assertEquals(message.size(), message.buffer().remaining());
+        assertEquals(message.size() - 4, first.remaining());
+        assertEquals("DRAW 1 2.0 1 2 3 4", message.getText());
+    }
+}
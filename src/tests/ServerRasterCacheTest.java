@@ -0,0 +1,160 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Test;
+
+import server.Client;
+import server.Message;
+import server.RasterCache;
+import server.ServerOptions;
+import server.Transport;
+import server.Whiteboard;
+import server.WhiteboardManager;
+import shared.LineSegment;
+
+/**
+ * Tests for keeping whiteboard bitmaps within a memory budget.
+ * TESTING STRATEGY:
+ * 1. Least recently used boards are spilled once the budget is exceeded, and reloaded unchanged when next needed
+ * 2. Boards with users are never spilled
+ * 3. Hits, misses and spills are counted
+ * 4. Boards nobody has drawn on take no memory and are never spilled
+ */
+public class ServerRasterCacheTest {
+    /**
+     * Transport that discards everything written to it.
+     */
+    private static class NullTransport implements Transport {
+        @Override
+        public boolean write(Message message) {
+            return true;
+        }
+
+        @Override
+        public void replaceQueued(List<Message> messages, Collection<Message> kept) {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort() {
+        }
+
+        @Override
+        public void offload(Runnable task) {
+            task.run();
+        }
+    }
+
+    /**
+     * @param boards How many boards' bitmaps fit in the budget.
+     */
+    private static WhiteboardManager manager(int boards) throws IOException {
+        File spill = File.createTempFile("spill", "");
+        assertTrue(spill.delete());
+        long megabytes = (boards * Whiteboard.WIDTH * Whiteboard.HEIGHT * 4L + (1 << 20) - 1) >> 20;
+        return new WhiteboardManager(ServerOptions.parse(new String[] {"--memory=" + megabytes, "--spill=" + spill}));
+    }
+
+    private static void drawLine(Whiteboard board, int offset) {
+        board.draw(Color.RED, 3, Arrays.asList(new LineSegment(offset, offset, 700 - offset, 500)));
+    }
+
+    /**
+     * Draws over every tile, so the whole bitmap is allocated.
+     */
+    private static void fill(Whiteboard board) {
+        List<LineSegment> stripes = new ArrayList<>();
+        for(int y = 50; y < Whiteboard.HEIGHT; y += 100) {
+            stripes.add(new LineSegment(0, y, Whiteboard.WIDTH - 1, y));
+        }
+        board.draw(Color.BLUE, 100, stripes);
+    }
+
+    @Test
+    public void testSpillAndReload() throws Exception {
+        WhiteboardManager manager = manager(2);
+        RasterCache cache = manager.getRasterCache();
+        Whiteboard first = manager.createWhiteboard("first");
+        fill(first);
+        drawLine(first, 10);
+        String image = first.getSerializedImage();
+        fill(manager.createWhiteboard("second"));
+        assertEquals(0, cache.getSpills());
+        fill(manager.createWhiteboard("third"));
+
+        assertEquals(1, cache.getSpills());
+        assertEquals(2, cache.getResident());
+        long misses = cache.getMisses();
+        assertEquals(image, first.getSerializedImage());
+        assertEquals(misses + 1, cache.getMisses());
+        assertEquals(2, first.getVersion());
+
+        // Reloading the first board pushed out the next least recently used, and draws still land.
+        assertEquals(2, cache.getSpills());
+        drawLine(manager.getWhiteboard("second"), 20);
+        assertEquals(misses + 2, cache.getMisses());
+        assertTrue(cache.getReloadNanos() > 0);
+        assertTrue(cache.getSpillNanos() > 0);
+    }
+
+    @Test
+    public void testHitsWhenResident() throws Exception {
+        WhiteboardManager manager = manager(2);
+        RasterCache cache = manager.getRasterCache();
+        Whiteboard board = manager.createWhiteboard("board");
+        long hits = cache.getHits();
+        drawLine(board, 10);
+        board.getSerializedImage();
+        assertEquals(hits + 2, cache.getHits());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    public void testBoardsInUseStayResident() throws Exception {
+        WhiteboardManager manager = manager(1);
+        RasterCache cache = manager.getRasterCache();
+        Client sam = new Client(manager, new NullTransport());
+        sam.lineReceived("HELLO sam");
+        sam.lineReceived("CREATE busy");
+        fill(manager.getWhiteboard("busy"));
+        Client kate = new Client(manager, new NullTransport());
+        kate.lineReceived("HELLO kate");
+        kate.lineReceived("CREATE other");
+        fill(manager.getWhiteboard("other"));
+
+        assertEquals(2, cache.getResident());
+        assertEquals(0, cache.getSpills());
+
+        // Once kate leaves, her board is the one that goes.
+        kate.lineReceived("JOIN busy");
+        fill(manager.createWhiteboard("quiet"));
+        assertEquals(1, cache.getSpills());
+        assertEquals(2, cache.getResident());
+        assertEquals(0, cache.getMisses());
+        manager.getWhiteboard("other").getSerializedImage();
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testBlankBoardsCostNothing() throws Exception {
+        WhiteboardManager manager = manager(1);
+        RasterCache cache = manager.getRasterCache();
+        for(int i = 0; i < 10; i++) {
+            manager.createWhiteboard("blank" + i);
+        }
+        assertEquals(10, cache.getResident());
+        assertEquals(0, cache.getSpills());
+    }
+}
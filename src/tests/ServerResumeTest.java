@@ -0,0 +1,124 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Test;
+
+import server.Client;
+import server.Message;
+import server.ServerOptions;
+import server.Transport;
+import server.WhiteboardManager;
+
+/**
+ * Tests for resuming a whiteboard after a reconnect.
+ * TESTING STRATEGY:
+ * 1. Resume-capable clients are told the version of every snapshot; others are not
+ * 2. A resume within the board's history gets just the missed DRAWs
+ * 3. A resume from too far back, or from the future, gets a full snapshot
+ */
+public class ServerResumeTest {
+    /**
+     * Transport that records the text of everything written to it.
+     */
+    private static class RecordingTransport implements Transport {
+        private final List<String> written = new ArrayList<>();
+
+        @Override
+        public boolean write(Message message) {
+            written.add(message.getText());
+            return true;
+        }
+
+        @Override
+        public void replaceQueued(List<Message> messages, Collection<Message> kept) {
+            List<String> waiting = new ArrayList<>(written);
+            written.clear();
+            for(Message message : kept) {
+                if(waiting.contains(message.getText())) {
+                    written.add(message.getText());
+                }
+            }
+            for(Message message : messages) {
+                written.add(message.getText());
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort() {
+        }
+
+        @Override
+        public void offload(Runnable task) {
+            task.run();
+        }
+    }
+
+    private static Client connect(WhiteboardManager manager, RecordingTransport transport, String hello) {
+        Client client = new Client(manager, transport);
+        client.lineReceived(hello);
+        transport.written.clear();
+        return client;
+    }
+
+    @Test
+    public void testSyncOnlyForResumableClients() {
+        WhiteboardManager manager = new WhiteboardManager();
+        RecordingTransport resumable = new RecordingTransport();
+        RecordingTransport plain = new RecordingTransport();
+        connect(manager, resumable, "HELLO sam resume").lineReceived("CREATE board");
+        connect(manager, plain, "HELLO kate").lineReceived("JOIN board");
+
+        assertEquals("SYNC 0", resumable.written.get(0));
+        assertTrue(resumable.written.get(1).startsWith("WHITEBOARD board "));
+        assertTrue(plain.written.get(0).startsWith("WHITEBOARD board "));
+    }
+
+    @Test
+    public void testResumeWithinHistory() throws Exception {
+        WhiteboardManager manager = new WhiteboardManager();
+        RecordingTransport drawerTransport = new RecordingTransport();
+        Client drawer = connect(manager, drawerTransport, "HELLO sam");
+        drawer.lineReceived("CREATE board");
+        for(int i = 1; i <= 3; i++) {
+            drawer.handleMessage("DRAW " + i + " -16777216 2.0 " + i + " 1 2 3");
+        }
+        manager.getWhiteboard("board").flush();
+
+        RecordingTransport transport = new RecordingTransport();
+        connect(manager, transport, "HELLO kate resume").lineReceived("JOIN board 1");
+        List<String> expected = new ArrayList<>();
+        expected.add("RESUME board 1 kate sam");
+        expected.add("DRAW -16777216 2.0 2 1 2 3");
+        expected.add("DRAW -16777216 2.0 3 1 2 3");
+        assertEquals(expected, transport.written);
+    }
+
+    @Test
+    public void testResumeOutsideHistory() throws Exception {
+        WhiteboardManager manager = new WhiteboardManager(ServerOptions.parse(new String[]{"--history=2"}));
+        Client drawer = connect(manager, new RecordingTransport(), "HELLO sam");
+        drawer.lineReceived("CREATE board");
+        for(int i = 1; i <= 3; i++) {
+            drawer.handleMessage("DRAW " + i + " -16777216 2.0 " + i + " 1 2 3");
+        }
+        manager.getWhiteboard("board").flush();
+
+        RecordingTransport tooOld = new RecordingTransport();
+        connect(manager, tooOld, "HELLO kate resume").lineReceived("JOIN board 0");
+        assertEquals("SYNC 3", tooOld.written.get(0));
+        assertTrue(tooOld.written.get(1).startsWith("WHITEBOARD board "));
+
+        RecordingTransport tooNew = new RecordingTransport();
+        connect(manager, tooNew, "HELLO bob resume").lineReceived("JOIN board 7");
+        assertEquals("SYNC 3", tooNew.written.get(0));
+    }
+}
@@ -0,0 +1,118 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import server.SegmentNormalizer;
+import server.Whiteboard;
+import server.ServerOptions;
+import server.WhiteboardManager;
+import shared.LineSegment;
+
+/**
+ * Tests for normalising the segments of a DRAW.
+ * TESTING STRATEGY:
+ * 1. Segments carrying straight on are merged; turns, reversals and gaps are not
+ * 2. Zero-length segments covered by other segments' ends are dropped; other dots are kept, once
+ * 3. Segments are clipped to the board plus a margin, and dropped if wholly outside; a draw is never left empty
+ * 4. A normalised freehand stroke paints the same pixels as the original
+ * 5. Boards count segments in and out, and only normalise draws with --normalize=on
+ */
+public class ServerSegmentNormalizerTest {
+    private static void assertSegment(LineSegment segment, int x1, int y1, int x2, int y2) {
+        assertEquals(x1, segment.x1);
+        assertEquals(y1, segment.y1);
+        assertEquals(x2, segment.x2);
+        assertEquals(y2, segment.y2);
+    }
+
+    @Test
+    public void testMerging() {
+        List<LineSegment> segments = SegmentNormalizer.normalize(Arrays.asList(
+                new LineSegment(0, 0, 2, 1), new LineSegment(2, 1, 6, 3), // Straight on.
+                new LineSegment(6, 3, 6, 10), // Turn.
+                new LineSegment(6, 10, 6, 5), // Reversal.
+                new LineSegment(7, 5, 7, 0)), 1); // Gap.
+        assertEquals(4, segments.size());
+        assertSegment(segments.get(0), 0, 0, 6, 3);
+        assertSegment(segments.get(1), 6, 3, 6, 10);
+        assertSegment(segments.get(2), 6, 10, 6, 5);
+        assertSegment(segments.get(3), 7, 5, 7, 0);
+    }
+
+    @Test
+    public void testZeroLength() {
+        List<LineSegment> segments = SegmentNormalizer.normalize(Arrays.asList(
+                new LineSegment(5, 5, 5, 5), new LineSegment(5, 5, 9, 5), new LineSegment(9, 5, 9, 5),
+                new LineSegment(9, 5, 9, 5), new LineSegment(20, 20, 20, 20)), 3);
+        assertEquals(2, segments.size());
+        assertSegment(segments.get(0), 5, 5, 9, 5);
+        assertSegment(segments.get(1), 20, 20, 20, 20);
+
+        segments = SegmentNormalizer.normalize(Arrays.asList(new LineSegment(1, 1, 1, 1)), 3);
+        assertEquals(1, segments.size());
+    }
+
+    @Test
+    public void testClipping() {
+        List<LineSegment> segments = SegmentNormalizer.normalize(Arrays.asList(
+                new LineSegment(-1000, 100, 1000, 100), new LineSegment(5000, 5000, 6000, 5000),
+                new LineSegment(10, 10, 20, 20)), 4);
+        assertEquals(2, segments.size());
+        assertSegment(segments.get(0), -5, 100, Whiteboard.WIDTH + 4, 100);
+        assertSegment(segments.get(1), 10, 10, 20, 20);
+
+        List<LineSegment> outside = Arrays.asList(new LineSegment(-100, -100, -50, -100));
+        assertSame(outside, SegmentNormalizer.normalize(outside, 1));
+    }
+
+    @Test
+    public void testSamePixels() {
+        List<LineSegment> stroke = new ArrayList<>();
+        int x = 100;
+        int y = 100;
+        for(int i = 0; i < 200; i++) {
+            // Diagonal runs, whose joints need their dots, and flat runs, whose joints don't.
+            int dx = i % 50 < 25 ? 2 : 1;
+            int dy = i % 70 < 35 ? 1 : i % 70 < 50 ? 0 : -1;
+            stroke.add(new LineSegment(x, y, x + dx, y + dy));
+            stroke.add(new LineSegment(x + dx, y + dy, x + dx, y + dy));
+            x += dx;
+            y += dy;
+        }
+        List<LineSegment> normalized = SegmentNormalizer.normalize(stroke, 3);
+        assertTrue(normalized.size() < stroke.size() / 2);
+
+        Whiteboard original = new Whiteboard("original");
+        original.draw(Color.BLACK, 3, stroke);
+        Whiteboard simplified = new Whiteboard("simplified");
+        simplified.draw(Color.BLACK, 3, normalized);
+        assertEquals(original.getSerializedImage(), simplified.getSerializedImage());
+    }
+
+    @Test
+    public void testCounters() throws Exception {
+        WhiteboardManager manager = new WhiteboardManager(ServerOptions.parse(new String[] {"--normalize=on"}));
+        Whiteboard board = manager.createWhiteboard("board");
+        board.draw(Color.BLACK, 2, Arrays.asList(new LineSegment(0, 0, 1, 0), new LineSegment(1, 0, 2, 0),
+                new LineSegment(2, 0, 2, 0)));
+        board.submit(Color.BLACK, 2, Arrays.asList(new LineSegment(5, 5, 6, 5)), null);
+        board.flush();
+        assertEquals(4, board.getSegmentsIn());
+        assertEquals(2, board.getSegmentsOut());
+    }
+
+    @Test
+    public void testOffByDefault() throws Exception {
+        Whiteboard board = new WhiteboardManager().createWhiteboard("board");
+        board.draw(Color.BLACK, 2, Arrays.asList(new LineSegment(0, 0, 1, 0), new LineSegment(1, 0, 2, 0)));
+        assertEquals(2, board.getSegmentsIn());
+        assertEquals(2, board.getSegmentsOut());
+    }
+}
@@ -4,14 +4,22 @@ import static org.junit.Assert.*;
 
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
 import server.Client;
 import server.ClientException;
+import server.Message;
+import server.ServerOptions;
+import server.Transport;
 import server.Whiteboard;
 import server.WhiteboardManager;
+import shared.SnapshotEncoding;
 
 /**
  * This class has automated tests for the Server Manager which has the list of clients and whiteboards.
@@ -21,10 +29,47 @@ import server.WhiteboardManager;
  * 3. Single whiteboard
  * 4. Multiple whiteboards with same names
  * 5. Multiple whiteboards with different names
+ * 6. Concurrent creation of the same and different names
+ * 7. CREATED reaches every client that has said HELLO, on a board or not, except the creator and clients already
+ *    told of the board in their HELLO reply
+ * 8. A client's ACK for a draw comes after the draw itself has been sent back to it
+ * 9. Clients that accept chunked bitmaps get a large one in CHUNKs, straight after the WHITEBOARD and before any
+ *    DRAW; others get it whole
+ * 10. Clients that also accept previews get each level in turn, smallest first, each pixel of a preview averaging
+ *    its square of the bitmap
  *
  */
 public class ServerWhiteboardManagerTest 
 {
+    /**
+     * Transport that records the text of everything written to it, from any thread.
+     */
+    private static class RecordingTransport implements Transport {
+        private final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public boolean write(Message message) {
+            written.add(message.getText());
+            return true;
+        }
+
+        @Override
+        public void replaceQueued(List<Message> messages, Collection<Message> kept) {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort() {
+        }
+
+        @Override
+        public void offload(Runnable task) {
+            task.run();
+        }
+    }
     
 	@Test(expected=ClientException.class)
     public void testDuplicateClientException() throws ClientException {
@@ -96,4 +141,189 @@ public class ServerWhiteboardManagerTest
         assertSame(fooboard, manager.getWhiteboard("fooboard"));
         assertSame(barboard, manager.getWhiteboard("barboard"));
     }
+
+    @Test
+    public void concurrentWhiteboards() throws InterruptedException {
+        final WhiteboardManager manager = new WhiteboardManager();
+        final AtomicInteger created = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for(int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for(int j = 0; j < 50; j++) {
+                        try {
+                            manager.createWhiteboard("shared" + j);
+                            created.incrementAndGet();
+                        } catch(ClientException e) {
+                            // Another thread got there first.
+                        }
+                        try {
+                            manager.createWhiteboard("own" + index + "-" + j);
+                        } catch(ClientException e) {
+                            fail("Unique name rejected");
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(50, created.get());
+        String[] names = manager.getWhiteboardNames();
+        assertEquals(50 + 8 * 50, names.length);
+        for(int i = 1; i < names.length; i++) {
+            assertTrue("Names not sorted", names[i - 1].compareTo(names[i]) < 0);
+        }
+    }
+
+    @Test
+    public void acksFollowDraws() throws Exception {
+        WhiteboardManager manager = new WhiteboardManager();
+        RecordingTransport transport = new RecordingTransport();
+        Client sam = new Client(manager, transport);
+        sam.lineReceived("HELLO sam");
+        sam.lineReceived("CREATE board");
+        for(int i = 1; i <= 20; i++) {
+            sam.lineReceived("DRAW " + i + " -16777216 2.0 " + i + " 0 0 " + i);
+        }
+        manager.getWhiteboard("board").flush();
+        for(int i = 0; i < 200 && !transport.written.contains("ACK 20"); i++) {
+            Thread.sleep(10);
+        }
+
+        List<String> received = new ArrayList<>();
+        synchronized(transport.written) {
+            for(String message : transport.written) {
+                if(message.startsWith("DRAW") || message.startsWith("ACK")) {
+                    received.add(message);
+                }
+            }
+        }
+        assertEquals(40, received.size());
+        int draws = 0;
+        for(String message : received) {
+            if(message.startsWith("DRAW")) {
+                draws++;
+            } else {
+                assertTrue("ACK before its DRAW: " + message, Integer.parseInt(message.substring(4)) <= draws);
+            }
+        }
+    }
+
+    @Test
+    public void createdNotifications() throws Exception {
+        WhiteboardManager manager = new WhiteboardManager();
+        RecordingTransport lobby = new RecordingTransport();
+        new Client(manager, lobby).lineReceived("HELLO sam");
+        RecordingTransport creator = new RecordingTransport();
+        Client kate = new Client(manager, creator);
+        kate.lineReceived("HELLO kate");
+        kate.lineReceived("CREATE first");
+        RecordingTransport late = new RecordingTransport();
+        new Client(manager, late).lineReceived("HELLO bob");
+        kate.lineReceived("CREATE second");
+
+        // Published asynchronously, in order.
+        for(int i = 0; i < 200 && lobby.written.size() < 3; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList("HELLO ", "CREATED first", "CREATED second"), lobby.written);
+        Thread.sleep(50);
+        assertEquals(Arrays.asList("HELLO first", "CREATED second"), late.written);
+        for(String message : creator.written) {
+            assertFalse(message.startsWith("CREATED"));
+        }
+    }
+
+    @Test
+    public void chunkedSnapshots() throws Exception {
+        WhiteboardManager manager = new WhiteboardManager(ServerOptions.parse(new String[] {"--chunk=1024"}));
+        Client sam = new Client(manager, new RecordingTransport());
+        sam.lineReceived("HELLO sam");
+        sam.lineReceived("CREATE board");
+        sam.lineReceived("DRAW 1 -16777216 2.0 10 10 200 300");
+        manager.getWhiteboard("board").flush();
+        RecordingTransport chunked = new RecordingTransport();
+        Client kate = new Client(manager, chunked);
+        kate.lineReceived("HELLO kate chunked");
+        kate.lineReceived("JOIN board");
+        RecordingTransport whole = new RecordingTransport();
+        Client bob = new Client(manager, whole);
+        bob.lineReceived("HELLO bob");
+        bob.lineReceived("JOIN board");
+        sam.lineReceived("DRAW 2 -16777216 2.0 0 0 5 5");
+        manager.getWhiteboard("board").flush();
+        for(int i = 0; i < 200 && !chunked.written.get(chunked.written.size() - 1).startsWith("DRAW"); i++) {
+            Thread.sleep(10);
+        }
+
+        List<String> received = new ArrayList<>(chunked.written);
+        int start = 0;
+        while(!received.get(start).startsWith("WHITEBOARD board " + SnapshotEncoding.CHUNKED + " ")) {
+            start++;
+        }
+        // A raw bitmap is 2.5 MB of base64, so three 1 MB chunks.
+        StringBuilder bitmap = new StringBuilder();
+        for(int i = 0; i < 3; i++) {
+            String chunk = received.get(start + 1 + i);
+            assertTrue(chunk.startsWith("CHUNK " + (2 - i) + " "));
+            bitmap.append(chunk.substring(8));
+        }
+        assertEquals(manager.getWhiteboard("board").getSerializedImage().length(), bitmap.length());
+        for(String message : received.subList(0, start + 4)) {
+            assertFalse(message.startsWith("DRAW"));
+        }
+        assertTrue(received.get(received.size() - 1).startsWith("DRAW"));
+        for(String message : whole.written) {
+            assertFalse(message.startsWith("CHUNK"));
+        }
+    }
+
+    @Test
+    public void progressiveSnapshots() throws Exception {
+        WhiteboardManager manager = new WhiteboardManager(ServerOptions.parse(new String[] {"--chunk=16"}));
+        Client sam = new Client(manager, new RecordingTransport());
+        sam.lineReceived("HELLO sam");
+        sam.lineReceived("CREATE board");
+        sam.lineReceived("DRAW 1 -16776961 7.0 10 10 790 590 3 597 797 5");
+        manager.getWhiteboard("board").flush();
+        RecordingTransport transport = new RecordingTransport();
+        Client kate = new Client(manager, transport);
+        kate.lineReceived("HELLO kate chunked progressive deflate");
+        kate.lineReceived("JOIN board");
+
+        List<String> levels = new ArrayList<>();
+        List<StringBuilder> bitmaps = new ArrayList<>();
+        for(String message : transport.written) {
+            if(message.startsWith("LEVEL ")) {
+                levels.add(message);
+                bitmaps.add(new StringBuilder());
+            } else if(message.startsWith("CHUNK ")) {
+                bitmaps.get(bitmaps.size() - 1).append(message.substring(message.indexOf(' ', 6) + 1));
+            }
+        }
+        assertEquals(Arrays.asList("LEVEL 8", "LEVEL 4", "LEVEL 1"), levels);
+        byte[] full = SnapshotEncoding.decode(bitmaps.get(2).toString());
+        assertArrayEquals(SnapshotEncoding.decode(manager.getWhiteboard("board").getSerializedImage()), full);
+        byte[] preview = SnapshotEncoding.decode(bitmaps.get(0).toString());
+        int width = SnapshotEncoding.scaledWidth(8);
+        assertEquals(width * SnapshotEncoding.scaledHeight(8) * 4, preview.length);
+        for(int y = 0; y < SnapshotEncoding.scaledHeight(8); y++) {
+            for(int x = 0; x < width; x++) {
+                for(int channel = 0; channel < 4; channel++) {
+                    int sum = 0;
+                    for(int dy = 0; dy < 8; dy++) {
+                        for(int dx = 0; dx < 8; dx++) {
+                            sum += full[((y * 8 + dy) * Whiteboard.WIDTH + x * 8 + dx) * 4 + channel] & 0xFF;
+                        }
+                    }
+                    assertEquals((sum + 32) / 64, preview[(y * width + x) * 4 + channel] & 0xFF);
+                }
+            }
+        }
+    }
 }
@@ -7,9 +7,13 @@ import server.*;
 import shared.*;
 
 import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
 import java.util.List;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
 
 
 public class ServerWhiteboardTest {
@@ -27,9 +31,9 @@ public class ServerWhiteboardTest {
         }
 
         @Override
-        public void sendMessage(String line) {
+        public void send(Message message) {
             assertFalse("Client received more messages than expected.", pointer >= expected.length);
-            assertEquals(expected[pointer++], line);
+            assertEquals(expected[pointer++], message.getText());
         }
 
         @Override
@@ -85,6 +89,128 @@ public class ServerWhiteboardTest {
         assertFalse("Image not changed by drawing", initial.equals(whiteboard.getSerializedImage()));
     }
 
+    @Test
+    public void testSnapshotVersion() {
+        Whiteboard whiteboard = new Whiteboard("someboard");
+        List<LineSegment> list = new ArrayList<>();
+        list.add(new LineSegment(10, 20, 30, 40));
+
+        long initialVersion = whiteboard.getVersion();
+        String initial = whiteboard.getSerializedImage();
+        assertSame("Snapshot not shared between joins", initial, whiteboard.getSerializedImage());
+
+        whiteboard.draw(Color.CYAN, 5, list);
+        assertTrue("Version not bumped by drawing", whiteboard.getVersion() > initialVersion);
+        String drawn = whiteboard.getSerializedImage();
+        assertFalse("Stale snapshot after drawing", initial.equals(drawn));
+        assertSame(drawn, whiteboard.getSerializedImage());
+    }
+
+    @Test
+    public void testTilesMatchSingleImage() {
+        Whiteboard whiteboard = new Whiteboard("someboard");
+        BufferedImage expected = new BufferedImage(Whiteboard.WIDTH, Whiteboard.HEIGHT, BufferedImage.TYPE_4BYTE_ABGR);
+        Graphics2D graphics = expected.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, Whiteboard.WIDTH, Whiteboard.HEIGHT);
+
+        Random random = new Random(42);
+        for(int i = 0; i < 200; i++) {
+            // Strokes of every width, crossing tile boundaries and running off the edges.
+            Color colour = new Color(random.nextInt(0x1000000));
+            float width = random.nextInt(21);
+            LineSegment line = new LineSegment(random.nextInt(900) - 50, random.nextInt(700) - 50,
+                    random.nextInt(900) - 50, random.nextInt(700) - 50);
+            whiteboard.draw(colour, width, Arrays.asList(line));
+            graphics.setColor(colour);
+            graphics.setStroke(new BasicStroke(width));
+            graphics.drawLine(line.x1, line.y1, line.x2, line.y2);
+            if(i % 50 == 0) {
+                whiteboard.getSerializedImage(); // Forces later draws to copy the tiles they touch.
+            }
+        }
+        byte[] pixels = ((DataBufferByte)expected.getRaster().getDataBuffer()).getData();
+        assertArrayEquals(pixels, Base64.decode(whiteboard.getSerializedImage()));
+    }
+
+    @Test
+    public void testBatchedDrawsMatchSingleImage() throws Exception {
+        Whiteboard whiteboard = new Whiteboard("someboard");
+        BufferedImage expected = new BufferedImage(Whiteboard.WIDTH, Whiteboard.HEIGHT, BufferedImage.TYPE_4BYTE_ABGR);
+        Graphics2D graphics = expected.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, Whiteboard.WIDTH, Whiteboard.HEIGHT);
+
+        Random random = new Random(7);
+        for(int i = 0; i < 500; i++) {
+            // Runs of draws sharing a colour and width, each a connected stroke, with some crossing themselves.
+            Color colour = new Color(random.nextInt(4) * 0x3F0000 + 0x00A000);
+            float width = random.nextInt(3) * 3;
+            List<LineSegment> stroke = new ArrayList<>();
+            int x = random.nextInt(800);
+            int y = random.nextInt(600);
+            for(int j = random.nextInt(5); j >= 0; j--) {
+                int nextX = x + random.nextInt(101) - 50;
+                int nextY = y + random.nextInt(101) - 50;
+                stroke.add(new LineSegment(x, y, nextX, nextY));
+                x = nextX;
+                y = nextY;
+            }
+            whiteboard.submit(colour, width, stroke, null);
+            graphics.setColor(colour);
+            graphics.setStroke(new BasicStroke(width));
+            for(LineSegment line : stroke) {
+                graphics.drawLine(line.x1, line.y1, line.x2, line.y2);
+            }
+        }
+        whiteboard.flush();
+        byte[] pixels = ((DataBufferByte)expected.getRaster().getDataBuffer()).getData();
+        assertArrayEquals(pixels, Base64.decode(whiteboard.getSerializedImage()));
+    }
+
+    @Test
+    public void testSubmittedDrawsKeepOrder() throws Exception {
+        final List<String> received = new ArrayList<>();
+        Client watcher = new Client(new WhiteboardManager(), new Socket()) {
+            {
+                username = "watcher";
+            }
+
+            @Override
+            public void send(Message message) {
+                received.add(message.getText());
+            }
+        };
+        final Whiteboard whiteboard = new Whiteboard("someboard");
+        whiteboard.addUser(watcher);
+        Thread[] drawers = new Thread[4];
+        for(int i = 0; i < drawers.length; i++) {
+            final int thread = i;
+            drawers[i] = new Thread() {
+                @Override
+                public void run() {
+                    for(int j = 0; j < 100; j++) {
+                        whiteboard.submit(Color.BLACK, 1, Arrays.asList(new LineSegment(thread, j, 0, 0)), null);
+                    }
+                }
+            };
+            drawers[i].start();
+        }
+        for(Thread drawer : drawers) {
+            drawer.join();
+        }
+        whiteboard.flush();
+
+        assertEquals(400, whiteboard.getVersion());
+        assertEquals(400, received.size());
+        int[] next = new int[drawers.length];
+        for(String draw : received) {
+            String[] args = draw.split(" ");
+            int thread = Integer.parseInt(args[3]);
+            assertEquals("Draws from one thread reordered", next[thread]++, Integer.parseInt(args[4]));
+        }
+    }
+
     @Test
     public void testName() {
         Whiteboard whiteboard = new Whiteboard("someboard");
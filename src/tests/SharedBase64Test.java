@@ -0,0 +1,39 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import shared.Base64;
+
+/**
+ * Tests for the shared base64 codec.
+ * TESTING STRATEGY:
+ * 1. Inputs of each length modulo 3, so every padding case is covered
+ * 2. Round trip of every byte value
+ */
+public class SharedBase64Test {
+    @Test
+    public void testKnownVectors() {
+        String[] plain = {"", "f", "fo", "foo", "foob", "fooba", "foobar"};
+        String[] encoded = {"", "Zg==", "Zm8=", "Zm9v", "Zm9vYg==", "Zm9vYmE=", "Zm9vYmFy"};
+        for(int i = 0; i < plain.length; i++) {
+            assertEquals(encoded[i], Base64.encode(plain[i].getBytes()));
+            assertEquals(plain[i], new String(Base64.decode(encoded[i])));
+        }
+    }
+
+    @Test
+    public void testRoundTrip() {
+        byte[] data = new byte[256];
+        for(int i = 0; i < data.length; i++) {
+            data[i] = (byte)i;
+        }
+        assertArrayEquals(data, Base64.decode(Base64.encode(data)));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidCharacter() {
+        Base64.decode("Zm9v!");
+    }
+}
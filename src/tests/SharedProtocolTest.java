@@ -0,0 +1,169 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import shared.DrawCommand;
+import shared.LineSegment;
+import shared.MessageDecoder;
+import shared.Protocol;
+
+/**
+ * Tests for the shared wire format.
+ * TESTING STRATEGY:
+ * 1. DRAW frames round trip: connected runs, disjoint segments, negative and large coordinates
+ * 2. Stroke widths are quantised to quarter pixels
+ * 3. Decoder handles text lines split across reads, and switching to binary frames mid-buffer
+ * 4. Malformed frames are rejected
+ * 5. Frames over the decoder's limit are rejected from their header; a long frame arriving in pieces is decoded whole
+ * 6. Text lines up to the decoder's limit are decoded; one that runs past it is rejected without waiting for its end
+ */
+public class SharedProtocolTest {
+    /**
+     * Handler that records everything it is given, with DRAWs formatted as text.
+     */
+    private static class RecordingHandler implements MessageDecoder.Handler {
+        private final List<String> received = new ArrayList<>();
+        private final List<DrawCommand> draws = new ArrayList<>();
+
+        @Override
+        public void lineReceived(String line) {
+            received.add(line);
+        }
+
+        @Override
+        public void drawReceived(DrawCommand draw) {
+            draws.add(draw);
+            received.add(Protocol.formatDraw(draw.colour, draw.strokeWidth, draw.segments));
+        }
+    }
+
+    private static DrawCommand roundTrip(int sequence, Color colour, float width, List<LineSegment> segments)
+            throws ProtocolException {
+        MessageDecoder decoder = new MessageDecoder();
+        decoder.setBinary(true);
+        RecordingHandler handler = new RecordingHandler();
+        assertTrue(decoder.next(ByteBuffer.wrap(Protocol.drawFrame(sequence, colour, width, segments)), handler));
+        return handler.draws.get(0);
+    }
+
+    @Test
+    public void testDrawRoundTrip() throws ProtocolException {
+        List<LineSegment> segments = Arrays.asList(new LineSegment(10, 20, 30, 40), new LineSegment(30, 40, 35, 38),
+                new LineSegment(-5, 700, 100000, -100000), new LineSegment(1, 1, 1, 1));
+        DrawCommand draw = roundTrip(42, Color.CYAN, 5, segments);
+        assertEquals(42, draw.sequence);
+        assertEquals(Color.CYAN, draw.colour);
+        assertEquals(5f, draw.strokeWidth, 0);
+        assertEquals(Protocol.formatDraw(Color.CYAN, 5, segments), Protocol.formatDraw(draw.colour, draw.strokeWidth,
+                draw.segments));
+    }
+
+    @Test
+    public void testWidthQuantised() throws ProtocolException {
+        List<LineSegment> segments = Arrays.asList(new LineSegment(0, 0, 1, 1));
+        assertEquals(2.25f, roundTrip(1, Color.BLACK, 2.3f, segments).strokeWidth, 0);
+        assertEquals(0f, roundTrip(1, Color.BLACK, 0, segments).strokeWidth, 0);
+    }
+
+    @Test
+    public void testTextSplitAcrossReads() throws ProtocolException {
+        MessageDecoder decoder = new MessageDecoder();
+        RecordingHandler handler = new RecordingHandler();
+        assertFalse(decoder.next(ByteBuffer.wrap("HEL".getBytes(StandardCharsets.UTF_8)), handler));
+        ByteBuffer rest = ByteBuffer.wrap("LO sam\r\nJOIN b\n".getBytes(StandardCharsets.UTF_8));
+        assertTrue(decoder.next(rest, handler));
+        assertTrue(decoder.next(rest, handler));
+        assertFalse(decoder.next(rest, handler));
+        assertEquals(Arrays.asList("HELLO sam", "JOIN b"), handler.received);
+    }
+
+    @Test
+    public void testSwitchToBinaryMidBuffer() throws ProtocolException {
+        byte[] line = "FEATURES binary\n".getBytes(StandardCharsets.UTF_8);
+        byte[] frame = Protocol.textFrame("HELLO a b");
+        ByteBuffer buffer = ByteBuffer.allocate(line.length + frame.length);
+        buffer.put(line).put(frame).flip();
+
+        MessageDecoder decoder = new MessageDecoder();
+        RecordingHandler handler = new RecordingHandler();
+        assertTrue(decoder.next(buffer, handler));
+        decoder.setBinary(true);
+        // Feed the frame one byte at a time to exercise partial headers and payloads.
+        ByteBuffer single = buffer.slice();
+        single.limit(0);
+        boolean decoded = false;
+        while(!decoded) {
+            single.limit(single.limit() + 1);
+            decoded = decoder.next(single, handler);
+        }
+        assertEquals(Arrays.asList("FEATURES binary", "HELLO a b"), handler.received);
+    }
+
+    @Test(expected=ProtocolException.class)
+    public void testUnknownFrameType() throws ProtocolException {
+        MessageDecoder decoder = new MessageDecoder();
+        decoder.setBinary(true);
+        decoder.next(ByteBuffer.wrap(new byte[]{2, 99, 0}), new RecordingHandler());
+    }
+
+    @Test(expected=ProtocolException.class)
+    public void testTruncatedDraw() throws ProtocolException {
+        MessageDecoder decoder = new MessageDecoder();
+        decoder.setBinary(true);
+        decoder.next(ByteBuffer.wrap(new byte[]{3, Protocol.FRAME_DRAW, 1, 0}), new RecordingHandler());
+    }
+
+    @Test(expected=ProtocolException.class)
+    public void testFrameOverLimit() throws ProtocolException {
+        MessageDecoder decoder = new MessageDecoder(1024);
+        decoder.setBinary(true);
+        byte[] header = Arrays.copyOf(Protocol.textFrame(new String(new char[1024])), 3); // Header, no payload.
+        decoder.next(ByteBuffer.wrap(header), new RecordingHandler());
+    }
+
+    @Test
+    public void testLineOverLimit() throws ProtocolException {
+        MessageDecoder decoder = new MessageDecoder(1024);
+        RecordingHandler handler = new RecordingHandler();
+        char[] chars = new char[1024];
+        Arrays.fill(chars, 'x');
+        String longest = new String(chars);
+        assertTrue(decoder.next(ByteBuffer.wrap((longest + "\n").getBytes(StandardCharsets.UTF_8)), handler));
+        assertEquals(Arrays.asList(longest), handler.received);
+        byte[] piece = longest.substring(0, 512).getBytes(StandardCharsets.UTF_8);
+        assertFalse(decoder.next(ByteBuffer.wrap(piece), handler));
+        assertFalse(decoder.next(ByteBuffer.wrap(piece), handler));
+        try {
+            decoder.next(ByteBuffer.wrap(new byte[]{'x'}), handler);
+            fail("Expected a ProtocolException");
+        } catch(ProtocolException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testLongFrameInPieces() throws ProtocolException {
+        char[] chars = new char[200000];
+        Arrays.fill(chars, 'x');
+        String line = "CREATE " + new String(chars);
+        byte[] frame = Protocol.textFrame(line);
+        MessageDecoder decoder = new MessageDecoder(Protocol.MAX_CLIENT_FRAME_LENGTH);
+        decoder.setBinary(true);
+        RecordingHandler handler = new RecordingHandler();
+        for(int offset = 0; offset < frame.length; offset += 1000) {
+            ByteBuffer piece = ByteBuffer.wrap(frame, offset, Math.min(1000, frame.length - offset));
+            assertEquals(offset + 1000 >= frame.length, decoder.next(piece, handler));
+        }
+        assertEquals(Arrays.asList(line), handler.received);
+    }
+}
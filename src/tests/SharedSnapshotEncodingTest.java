@@ -0,0 +1,61 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import server.Whiteboard;
+import shared.LineSegment;
+import shared.SnapshotEncoding;
+
+/**
+ * Tests for the WHITEBOARD bitmap encodings.
+ * TESTING STRATEGY:
+ * 1. Each encoding round trips through decode()
+ * 2. A blank board compresses to a small fraction of its raw size
+ * 3. Raw encoding is unchanged base64, so old clients still understand it
+ * 4. Corrupt compressed data is rejected
+ * 5. Blank boards share one encoding, and the blank marker decodes to the same white bitmap
+ */
+public class SharedSnapshotEncodingTest {
+    @Test
+    public void testRoundTrip() {
+        byte[] data = new byte[10000];
+        for(int i = 0; i < data.length; i++) {
+            data[i] = (byte)(i * 31 % 7);
+        }
+        for(SnapshotEncoding encoding : SnapshotEncoding.values()) {
+            assertArrayEquals(data, SnapshotEncoding.decode(encoding.encode(data)));
+        }
+    }
+
+    @Test
+    public void testBoardCompresses() {
+        Whiteboard board = new Whiteboard("compress");
+        board.draw(Color.RED, 5, Arrays.asList(new LineSegment(10, 10, 200, 300)));
+        String raw = board.getSerializedImage(SnapshotEncoding.RAW);
+        String deflated = board.getSerializedImage(SnapshotEncoding.DEFLATE);
+        assertEquals(raw, board.getSerializedImage());
+        assertTrue(deflated.length() * 50 < raw.length());
+        assertArrayEquals(SnapshotEncoding.decode(raw), SnapshotEncoding.decode(deflated));
+    }
+
+    @Test
+    public void testBlankBoards() {
+        String blank = new Whiteboard("first").getSerializedImage(SnapshotEncoding.DEFLATE);
+        assertSame(blank, new Whiteboard("second").getSerializedImage(SnapshotEncoding.DEFLATE));
+        byte[] white = SnapshotEncoding.decode(SnapshotEncoding.BLANK);
+        assertArrayEquals(SnapshotEncoding.decode(blank), white);
+        for(byte b : white) {
+            assertEquals((byte)0xFF, b);
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testCorrupt() {
+        SnapshotEncoding.decode("z:Zm9v");
+    }
+}